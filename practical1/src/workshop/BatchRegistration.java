@@ -0,0 +1,176 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdMatrix;
+import jv.vecmath.PdVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Registers a number of scans onto one reference surface concurrently.
+ * Every scan gets its own RigidTransformation, all of them share the cached TargetIndex of the reference,
+ * so the reference is indexed once. The scans run on a pool with a fixed number of threads and each
+ * registration runs on a single thread. The scans are moved in place.
+ */
+public class BatchRegistration {
+
+	private final PgElementSet m_reference;
+	private RigidTransformation m_template;
+	private int m_threads = Runtime.getRuntime().availableProcessors();
+	private boolean m_preAlign = false;
+	private long m_seed = 0;
+
+	/**
+	 * @param reference The surface all scans are registered onto, not modified
+	 */
+	public BatchRegistration(PgElementSet reference) {
+		m_reference = reference;
+	}
+
+	/**
+	 * @param template The options (correspondences, error metric, outliers, sampling, extrapolation, distance field, tracking) are copied from this registration
+	 */
+	public void setTemplate(RigidTransformation template) {
+		m_template = template;
+	}
+
+	/**
+	 * @param threads The number of scans registered at the same time
+	 */
+	public void setThreads(int threads) {
+		m_threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param preAlign If true every scan is first aligned by its principal axes, see RigidTransformation.alignPrincipalAxes
+	 */
+	public void setPreAlign(boolean preAlign) {
+		m_preAlign = preAlign;
+	}
+
+	/**
+	 * @param seed Scan i samples with the seed seed + i, so a batch can be repeated exactly
+	 */
+	public void setSeed(long seed) {
+		m_seed = seed;
+	}
+
+	/**
+	 * Registers all scans onto the reference, see RigidTransformation.register for the parameters.
+	 * @return One report per scan, in the order of the scans
+	 */
+	public List<Report> run(List<PgElementSet> scans, int nrVertices, double k, int maxSteps, double maxError) {
+		Report[] reports = new Report[scans.size()];
+		ForkJoinPool pool = new ForkJoinPool(m_threads);
+		try {
+			prepareReference(pool);
+			ParallelRange.forEach(pool, scans.size(), 1, (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
+					reports[i] = register(i, scans.get(i), nrVertices, k, maxSteps, maxError);
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+		List<Report> result = new ArrayList<>();
+		for (Report report : reports) {
+			result.add(report);
+		}
+		return result;
+	}
+
+	/**
+	 * Builds everything of the reference that the registrations would otherwise create lazily, and concurrently.
+	 */
+	private void prepareReference(ForkJoinPool pool) {
+		TargetIndex index = TargetIndex.get(m_reference);
+		if (m_template != null && m_template.m_closestPointOnSurface) {
+			// The first query builds the hierarchy, which the distance field needs
+			index.closestPoint(new PdVector(3), null);
+		}
+		if (m_template != null && m_template.m_distanceField) {
+			index.buildDistanceField(m_template.m_closestPointOnSurface, m_template.m_fieldResolution, m_template.m_fieldBandWidth, pool);
+		}
+		if (m_template != null && m_template.m_pointToPlane) {
+			if (m_template.m_closestPointOnSurface && !m_reference.hasElementNormals()) {
+				m_reference.makeElementNormals();
+			}
+			if (!m_template.m_closestPointOnSurface && !m_reference.hasVertexNormals()) {
+				m_reference.makeVertexNormals();
+			}
+		}
+	}
+
+	private Report register(int scanIndex, PgElementSet scan, int nrVertices, double k, int maxSteps, double maxError) {
+		double[] before = IcpPyramid.toArray(scan.getVertices());
+		long start = System.nanoTime();
+
+		RigidTransformation registration = new RigidTransformation();
+		registration.setGeometries(scan, m_reference);
+		if (m_template != null) {
+			registration.setBruteForce(m_template.m_bruteForce);
+			registration.setClosestPointOnSurface(m_template.m_closestPointOnSurface);
+			registration.setPointToPlane(m_template.m_pointToPlane);
+			registration.setUseKernel(m_template.m_useKernel);
+			registration.setSampling(m_template.m_sampling);
+			registration.setExtrapolate(m_template.m_extrapolate);
+			registration.setRobustWeights(m_template.m_robustWeights);
+			registration.setTrackCorrespondences(m_template.m_track);
+			registration.setDistanceField(m_template.m_distanceField, m_template.m_fieldResolution, m_template.m_fieldBandWidth);
+		}
+		// Only move the scan once at the end
+		registration.setAccumulateTransform(true, 0);
+		registration.setSeed(m_seed + scanIndex);
+		if (m_preAlign) {
+			registration.alignPrincipalAxes(nrVertices);
+		}
+		PdVector result = registration.register(nrVertices, k, maxSteps, maxError);
+		double timeMs = (System.nanoTime() - start) / 1e6;
+
+		return new Report(scan, motionBetween(before, IcpPyramid.toArray(scan.getVertices())),
+				(int) result.getEntry(0), result.getEntry(1), timeMs);
+	}
+
+	/**
+	 * @return The rigid motion that moved the points from before to after, as homogeneous 4x4 matrix
+	 */
+	private static PdMatrix motionBetween(double[] before, double[] after) {
+		IcpKernel kernel = new IcpKernel();
+		kernel.setSize(before.length / 3);
+		System.arraycopy(before, 0, kernel.m_p, 0, before.length);
+		System.arraycopy(after, 0, kernel.m_q, 0, after.length);
+		kernel.reject(Double.POSITIVE_INFINITY);
+		kernel.fit();
+		RigidMotion motion = new RigidMotion();
+		double[] t = kernel.m_translation;
+		motion.preMultiply(kernel.m_rotation, t[0], t[1], t[2]);
+		return motion.getMatrix();
+	}
+
+	/** The outcome of the registration of one scan */
+	public static class Report {
+		public final PgElementSet m_scan;
+		/** The motion applied to the scan, homogeneous 4x4 */
+		public final PdMatrix m_transform;
+		public final int m_steps;
+		/** The lowest error of the registration */
+		public final double m_error;
+		/** Wall time of the registration of this scan, including its setup */
+		public final double m_timeMs;
+
+		Report(PgElementSet scan, PdMatrix transform, int steps, double error, double timeMs) {
+			m_scan = scan;
+			m_transform = transform;
+			m_steps = steps;
+			m_error = error;
+			m_timeMs = timeMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d steps, error %.6g, %.1f ms", m_scan.getName(), m_steps, m_error, m_timeMs);
+		}
+	}
+}
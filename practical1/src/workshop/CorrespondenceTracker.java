@@ -0,0 +1,109 @@
+package workshop;
+
+import jv.vecmath.PdVector;
+
+import java.util.Arrays;
+
+/**
+ * Warm-started closest vertex search between the steps of ICP. Remembers the matched vertex of Q for every vertex of P
+ * and, in a later step, walks greedily over the edges of Q from that match to the neighbour closest to the sample
+ * until no neighbour is closer. A vertex of P that has not been matched yet starts from the match of one of its neighbours.
+ * The motion between late steps is small, so a walk then ends after a step or none and costs a few distances
+ * instead of a tree search. A walk stalls if there is no match to start from, it reaches a vertex without neighbours
+ * or it takes more than MAX_WALK steps; the caller then searches globally and passes the result to remember.
+ * The end of a walk is a local minimum of the distance over the edges of Q, which can differ from the closest vertex
+ * where Q folds back towards the sample, so the matches have to be forgotten after a large motion of P or Q.
+ */
+public class CorrespondenceTracker {
+
+	/** Longest walk before falling back to the global search */
+	private static final int MAX_WALK = 16;
+
+	private final VertexAdjacency m_adjacencyP;
+	private final VertexAdjacency m_adjacencyQ;
+	/** Per vertex of P the index of its last match in Q, -1 if none */
+	private final int[] m_previous;
+
+	public CorrespondenceTracker(VertexAdjacency adjacencyP, VertexAdjacency adjacencyQ) {
+		m_adjacencyP = adjacencyP;
+		m_adjacencyQ = adjacencyQ;
+		m_previous = new int[adjacencyP.size()];
+		forget();
+	}
+
+	/**
+	 * @return True if the tracker was made for these adjacencies
+	 */
+	public boolean matches(VertexAdjacency adjacencyP, VertexAdjacency adjacencyQ) {
+		return m_adjacencyP == adjacencyP && m_adjacencyQ == adjacencyQ;
+	}
+
+	/**
+	 * Drops all matches, the next search of every vertex is global.
+	 */
+	public void forget() {
+		Arrays.fill(m_previous, -1);
+	}
+
+	/**
+	 * Walks from the last match of the vertex of P to the closest vertex of Q of the point (x, y, z), the current
+	 * position of the vertex, and remembers the result. Safe to call from multiple threads for different vertices.
+	 * @param vertex The index of the sample in P
+	 * @param verticesQ The current vertices of Q
+	 * @return The index of the vertex of Q, -1 if the walk stalled
+	 */
+	public int track(int vertex, double x, double y, double z, PdVector[] verticesQ) {
+		int current = start(vertex);
+		if (current < 0 || current >= verticesQ.length || m_adjacencyQ.degree(current) == 0) {
+			return -1;
+		}
+		int[] offsets = m_adjacencyQ.m_offsets;
+		int[] neighbours = m_adjacencyQ.m_neighbours;
+		double distance = squaredDistance(verticesQ[current].m_data, x, y, z);
+		for (int step = 0; step <= MAX_WALK; step++) {
+			int best = current;
+			for (int j = offsets[current]; j < offsets[current + 1]; j++) {
+				double d = squaredDistance(verticesQ[neighbours[j]].m_data, x, y, z);
+				if (d < distance) {
+					distance = d;
+					best = neighbours[j];
+				}
+			}
+			if (best == current) {
+				m_previous[vertex] = current;
+				return current;
+			}
+			current = best;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remembers the match of the vertex of P found by a global search.
+	 */
+	public void remember(int vertex, int match) {
+		m_previous[vertex] = match;
+	}
+
+	/**
+	 * @return The last match of the vertex, otherwise the last match of one of its neighbours in P, -1 if there is none
+	 */
+	private int start(int vertex) {
+		if (m_previous[vertex] >= 0) {
+			return m_previous[vertex];
+		}
+		int[] offsets = m_adjacencyP.m_offsets;
+		for (int j = offsets[vertex]; j < offsets[vertex + 1]; j++) {
+			int match = m_previous[m_adjacencyP.m_neighbours[j]];
+			if (match >= 0) {
+				return match;
+			}
+		}
+		return -1;
+	}
+
+	private static double squaredDistance(double[] p, double x, double y, double z) {
+		double dx = p[0] - x, dy = p[1] - y, dz = p[2] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+}
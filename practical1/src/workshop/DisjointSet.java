@@ -0,0 +1,96 @@
+package workshop;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Union-find over the integers [0, size), on a single array of parents.
+ * A union links the root with the larger index below the one with the smaller index, so the root of every set is
+ * its smallest member, and it does so with a compare-and-set: union and find are safe to call from multiple threads
+ * and need no locks. Paths are halved by every find.
+ */
+public class DisjointSet {
+
+	private final AtomicIntegerArray m_parent;
+
+	/**
+	 * Creates size singleton sets.
+	 */
+	public DisjointSet(int size) {
+		m_parent = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++) {
+			m_parent.lazySet(i, i);
+		}
+	}
+
+	public int size() {
+		return m_parent.length();
+	}
+
+	/**
+	 * @return The root of the set of x, its smallest member
+	 */
+	public int find(int x) {
+		int parent = m_parent.get(x);
+		while (parent != x) {
+			int grandparent = m_parent.get(parent);
+			// Path halving, losing the race to another thread only skips the shortcut
+			m_parent.compareAndSet(x, parent, grandparent);
+			x = grandparent;
+			parent = m_parent.get(x);
+		}
+		return x;
+	}
+
+	/**
+	 * Merges the sets of a and b.
+	 * @return True if they were different sets
+	 */
+	public boolean union(int a, int b) {
+		while (true) {
+			int rootA = find(a);
+			int rootB = find(b);
+			if (rootA == rootB) {
+				return false;
+			}
+			int high = Math.max(rootA, rootB);
+			int low = Math.min(rootA, rootB);
+			// Fails if high stopped being a root in the meantime, then the roots are looked up again
+			if (m_parent.compareAndSet(high, high, low)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Numbers the sets densely in the order of their smallest member. Must not run concurrently with union.
+	 * @param labels Receives the number of the set of every element, may be null
+	 * @return The number of sets
+	 */
+	public int label(int[] labels) {
+		int count = 0;
+		for (int i = 0; i < m_parent.length(); i++) {
+			int root = find(i);
+			if (root == i) {
+				if (labels != null) {
+					labels[i] = count;
+				}
+				count++;
+			} else if (labels != null) {
+				// The root is smaller, so it has been numbered already
+				labels[i] = labels[root];
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of elements with every label, see label
+	 */
+	public static int[] sizes(int[] labels, int count) {
+		int[] sizes = new int[count];
+		for (int label : labels) {
+			sizes[label]++;
+		}
+		return sizes;
+	}
+}
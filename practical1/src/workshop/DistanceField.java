@@ -0,0 +1,271 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PiVector;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Sparse distance field in a narrow band around a surface, on a voxel grid that is hashed by cell.
+ * Every cell within the band stores the closest vertex or closest point on the surface of its centre,
+ * the distance to it and the index of that vertex or element, so a lookup costs one hash probe.
+ * The answer is the one for the centre of the cell of the query point, so its distance to the query point exceeds
+ * the exact one by at most a cell diagonal. Points outside the band are not answered and have to be searched exactly.
+ * The field is built by a flood fill from the cells of the surface, layer by layer, the distances of a layer
+ * are computed in parallel.
+ * Distances are unsigned. Cell coordinates are limited to the range of LongIntHashMap.cellKey, the resolution is
+ * coarsened at build time if the band around the geometry would not fit, and points in cells outside the range
+ * are treated as outside the band.
+ */
+public class DistanceField {
+
+	/** Offsets of the six face neighbours of a cell */
+	private static final int[] NEIGHBOURS = {1, 0, 0, -1, 0, 0, 0, 1, 0, 0, -1, 0, 0, 0, 1, 0, 0, -1};
+	/** Key of the cells outside the range of LongIntHashMap.cellKey, never stored */
+	private static final long OUTSIDE = Long.MIN_VALUE;
+
+	/** The resolution asked for, m_resolution may be coarser */
+	private final double m_requestedResolution;
+
+	private final double m_resolution;
+	private final double m_bandWidth;
+	private final boolean m_surface;
+	/** Cell key to slot in the arrays below */
+	private final LongIntHashMap m_cells;
+	/** Per slot: closest point (xyz), distance, vertex or element index */
+	private double[] m_points;
+	private float[] m_distances;
+	private int[] m_indices;
+	private int m_size;
+
+	/**
+	 * Builds the field over the current vertices of the geometry.
+	 * @param index Exact search over the geometry, in the same frame
+	 * @param surface If true the field stores closest points on the surface, otherwise closest vertices
+	 * @param resolution The edge length of a cell, increased if the cells of the band exceed the range of cell keys
+	 * @param bandWidth Cells whose centre is further from the surface are not stored
+	 * @param pool The pool for the distance computations, may be null
+	 */
+	public DistanceField(PgElementSet geometry, TargetIndex index, boolean surface, double resolution, double bandWidth, ForkJoinPool pool) {
+		double[] xyz = IcpPyramid.toArray(geometry.getVertices());
+		m_requestedResolution = resolution;
+		m_resolution = Math.max(resolution, minResolution(xyz, bandWidth));
+		m_bandWidth = bandWidth;
+		m_surface = surface;
+		m_cells = new LongIntHashMap(xyz.length / 3);
+		m_points = new double[xyz.length];
+		m_distances = new float[xyz.length / 3];
+		m_indices = new int[xyz.length / 3];
+
+		// Seeds: the cells of the vertices, and for the surface the cells along the triangles
+		CellList frontier = new CellList();
+		LongIntHashMap visited = new LongIntHashMap(xyz.length / 3);
+		for (int i = 0; i < xyz.length / 3; i++) {
+			frontier.visit(cellOf(xyz[i * 3], xyz[i * 3 + 1], xyz[i * 3 + 2]), visited);
+		}
+		if (surface) {
+			for (PiVector element : geometry.getElements()) {
+				int[] v = element.getEntries();
+				for (int j = 1; j + 1 < element.getSize(); j++) {
+					seedTriangle(xyz, v[0], v[j], v[j + 1], visited, frontier);
+				}
+			}
+		}
+
+		CellList next = new CellList();
+		while (frontier.m_size > 0) {
+			// Distances of the whole layer
+			long[] layer = frontier.m_keys;
+			int layerSize = frontier.m_size;
+			double[] closest = new double[layerSize * 3];
+			int[] found = new int[layerSize];
+			ParallelRange.forEach(pool, layerSize, 64, (lo, hi) -> {
+				double[] centre = new double[3];
+				for (int i = lo; i < hi; i++) {
+					centreOf(layer[i], centre);
+					if (surface) {
+						found[i] = index.closestPoint(centre, 0, closest, i * 3);
+					} else {
+						found[i] = index.nearest(centre[0], centre[1], centre[2]);
+						if (found[i] >= 0) {
+							System.arraycopy(xyz, found[i] * 3, closest, i * 3, 3);
+						}
+					}
+				}
+			});
+
+			// Keep the cells in the band, their neighbours form the next layer
+			next.m_size = 0;
+			double[] centre = new double[3];
+			for (int i = 0; i < layerSize; i++) {
+				if (found[i] < 0) {
+					continue;
+				}
+				centreOf(layer[i], centre);
+				double dx = centre[0] - closest[i * 3], dy = centre[1] - closest[i * 3 + 1], dz = centre[2] - closest[i * 3 + 2];
+				double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+				if (distance > bandWidth) {
+					continue;
+				}
+				add(layer[i], closest, i * 3, distance, found[i]);
+				long x = cellX(layer[i]), y = cellY(layer[i]), z = cellZ(layer[i]);
+				for (int n = 0; n < 6; n++) {
+					next.visit(cellKey(x + NEIGHBOURS[n * 3], y + NEIGHBOURS[n * 3 + 1], z + NEIGHBOURS[n * 3 + 2]), visited);
+				}
+			}
+			CellList swap = frontier;
+			frontier = next;
+			next = swap;
+		}
+	}
+
+	/**
+	 * @return True if the field was built with these settings
+	 */
+	public boolean matches(boolean surface, double resolution, double bandWidth) {
+		return m_surface == surface && m_requestedResolution == resolution && m_bandWidth == bandWidth;
+	}
+
+	/**
+	 * @return True if the field stores closest points on the surface, false for closest vertices
+	 */
+	public boolean isSurface() {
+		return m_surface;
+	}
+
+	/**
+	 * @return The number of stored cells
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Looks up the cell of the point (x, y, z). Safe to call from multiple threads.
+	 * @param closest Receives the closest vertex or surface point of the centre of the cell
+	 * @return The vertex or element index stored for the cell, -1 if the cell is outside the band
+	 */
+	public int lookup(double x, double y, double z, double[] closest, int closestOffset) {
+		long key = cellOf(x, y, z);
+		int slot = (key == OUTSIDE) ? LongIntHashMap.MISSING : m_cells.get(key);
+		if (slot == LongIntHashMap.MISSING) {
+			return -1;
+		}
+		System.arraycopy(m_points, slot * 3, closest, closestOffset, 3);
+		return m_indices[slot];
+	}
+
+	/**
+	 * @return The distance of the centre of the cell of the point to the surface, NaN outside the band
+	 */
+	public double distance(double x, double y, double z) {
+		long key = cellOf(x, y, z);
+		int slot = (key == OUTSIDE) ? LongIntHashMap.MISSING : m_cells.get(key);
+		return (slot == LongIntHashMap.MISSING) ? Double.NaN : m_distances[slot];
+	}
+
+	private void add(long key, double[] closest, int offset, double distance, int index) {
+		if (m_size == m_indices.length) {
+			int capacity = Math.max(16, m_size * 2);
+			m_points = Arrays.copyOf(m_points, capacity * 3);
+			m_distances = Arrays.copyOf(m_distances, capacity);
+			m_indices = Arrays.copyOf(m_indices, capacity);
+		}
+		System.arraycopy(closest, offset, m_points, m_size * 3, 3);
+		m_distances[m_size] = (float) distance;
+		m_indices[m_size] = index;
+		m_cells.put(key, m_size);
+		m_size++;
+	}
+
+	/**
+	 * Adds the cells along the triangle to the frontier, sampled finer than the resolution.
+	 */
+	private void seedTriangle(double[] xyz, int a, int b, int c, LongIntHashMap visited, CellList frontier) {
+		double longest = Math.max(edge(xyz, a, b), Math.max(edge(xyz, b, c), edge(xyz, c, a)));
+		int steps = Math.max(1, (int) Math.ceil(longest / (m_resolution / 2)));
+		for (int i = 0; i <= steps; i++) {
+			for (int j = 0; i + j <= steps; j++) {
+				double u = i / (double) steps, v = j / (double) steps, w = 1 - u - v;
+				double x = u * xyz[a * 3] + v * xyz[b * 3] + w * xyz[c * 3];
+				double y = u * xyz[a * 3 + 1] + v * xyz[b * 3 + 1] + w * xyz[c * 3 + 1];
+				double z = u * xyz[a * 3 + 2] + v * xyz[b * 3 + 2] + w * xyz[c * 3 + 2];
+				frontier.visit(cellOf(x, y, z), visited);
+			}
+		}
+	}
+
+	private static double edge(double[] xyz, int a, int b) {
+		double dx = xyz[a * 3] - xyz[b * 3], dy = xyz[a * 3 + 1] - xyz[b * 3 + 1], dz = xyz[a * 3 + 2] - xyz[b * 3 + 2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * @return The smallest resolution at which the cells within the band around the vertices, and their
+	 * neighbours, have coordinates in the range of LongIntHashMap.cellKey
+	 */
+	private static double minResolution(double[] xyz, double bandWidth) {
+		double extent = 0;
+		for (double c : xyz) {
+			extent = Math.max(extent, Math.abs(c));
+		}
+		// Two cells of margin for the neighbours of the outermost cells of the band
+		return (extent + bandWidth) / (LongIntHashMap.CELL_RANGE - 2);
+	}
+
+	private long cellOf(double x, double y, double z) {
+		return cellKey((long) Math.floor(x / m_resolution), (long) Math.floor(y / m_resolution),
+				(long) Math.floor(z / m_resolution));
+	}
+
+	/**
+	 * @return The key of LongIntHashMap.cellKey, OUTSIDE if a coordinate would wrap around
+	 */
+	private static long cellKey(long x, long y, long z) {
+		long range = LongIntHashMap.CELL_RANGE;
+		if (x < -range || x >= range || y < -range || y >= range || z < -range || z >= range) {
+			return OUTSIDE;
+		}
+		return LongIntHashMap.cellKey(x, y, z);
+	}
+
+	private void centreOf(long key, double[] centre) {
+		centre[0] = (cellX(key) + 0.5) * m_resolution;
+		centre[1] = (cellY(key) + 0.5) * m_resolution;
+		centre[2] = (cellZ(key) + 0.5) * m_resolution;
+	}
+
+	/** The cell coordinates of a key of LongIntHashMap.cellKey, sign extended from 21 bits */
+	private static long cellX(long key) {
+		return (key << 1) >> 43;
+	}
+
+	private static long cellY(long key) {
+		return (key << 22) >> 43;
+	}
+
+	private static long cellZ(long key) {
+		return (key << 43) >> 43;
+	}
+
+	/** Growable list of cell keys */
+	private static class CellList {
+		long[] m_keys = new long[16];
+		int m_size;
+
+		/**
+		 * Appends the cell if it has not been visited yet and marks it as visited.
+		 */
+		void visit(long key, LongIntHashMap visited) {
+			if (key == OUTSIDE || visited.get(key) != LongIntHashMap.MISSING) {
+				return;
+			}
+			visited.put(key, 0);
+			if (m_size == m_keys.length) {
+				m_keys = Arrays.copyOf(m_keys, m_size * 2);
+			}
+			m_keys[m_size++] = key;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+import jv.vecmath.PiVector;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Cached topology and geometry reports of a PgElementSet: half-edges, components, genus, manifoldness,
+ * boundary loops and mesh integrals. The cache keeps a version of the vertices and a version of the elements
+ * and every result remembers the versions it was computed for, so a result is recomputed on first use after a
+ * change it depends on and otherwise costs nothing. The connectivity results only depend on the elements and survive
+ * moving the vertices; the loops with their perimeters and the integrals depend on both.
+ * get notices replaced arrays, changed counts and edits in place by itself, the latter by a checksum over the
+ * coordinates and one over the element indices, a linear pass that is cheap next to recomputing a result.
+ * verticesChanged and elementsChanged force a recomputation. Reports are shared through a cache keyed by the identity
+ * of the geometry.
+ * All methods are safe to call from multiple threads.
+ */
+public class GeometryReport {
+
+	private static final Map<PgElementSet, GeometryReport> CACHE = new WeakHashMap<>();
+
+	/** Weak, the cache must not keep its keys alive */
+	private final WeakReference<PgElementSet> m_geometry;
+	/** The arrays and counts seen by the last get, to notice replaced arrays */
+	private WeakReference<PdVector[]> m_vertexArray = new WeakReference<>(null);
+	private WeakReference<PiVector[]> m_elementArray = new WeakReference<>(null);
+	private int m_numVertices = -1;
+	private int m_numElements = -1;
+	/** Checksums of the coordinates and of the element indices seen by the last get, to notice edits in place */
+	private long m_vertexChecksum;
+	private long m_elementChecksum;
+	private int m_vertexVersion;
+	private int m_elementVersion;
+
+	private HalfEdgeMesh m_halfEdges;
+	private int m_halfEdgesVersion = -1;
+	private Topology.Components m_components;
+	private int m_componentsVersion = -1;
+	private HalfEdgeMesh.Manifoldness m_manifoldness;
+	private int m_manifoldnessVersion = -1;
+	private int m_numBoundaryLoops;
+	private int m_numBoundaryLoopsVersion = -1;
+	/** Depend on both versions */
+	private List<HalfEdgeMesh.BoundaryLoop> m_loops;
+	private int m_loopsVertexVersion = -1;
+	private int m_loopsElementVersion = -1;
+	private MeshIntegrals m_integrals;
+	private int m_integralsVertexVersion = -1;
+	private int m_integralsElementVersion = -1;
+
+	private GeometryReport(PgElementSet geometry) {
+		m_geometry = new WeakReference<>(geometry);
+	}
+
+	/**
+	 * @return The report of the geometry, with its versions advanced if its vertices or elements have changed
+	 */
+	public static GeometryReport get(PgElementSet geometry) {
+		GeometryReport report;
+		synchronized (CACHE) {
+			report = CACHE.get(geometry);
+			if (report == null) {
+				report = new GeometryReport(geometry);
+				CACHE.put(geometry, report);
+			}
+		}
+		report.check(geometry);
+		return report;
+	}
+
+	/**
+	 * Announces that vertices of the geometry have been moved in place.
+	 */
+	public static void verticesChanged(PgElementSet geometry) {
+		GeometryReport report = get(geometry);
+		synchronized (report) {
+			report.m_vertexVersion++;
+		}
+	}
+
+	/**
+	 * Announces that elements of the geometry have been changed in place.
+	 */
+	public static void elementsChanged(PgElementSet geometry) {
+		GeometryReport report = get(geometry);
+		synchronized (report) {
+			report.m_elementVersion++;
+		}
+	}
+
+	private synchronized void check(PgElementSet geometry) {
+		PdVector[] vertices = geometry.getVertices();
+		PiVector[] elements = geometry.getElements();
+		int numElements = (elements == null) ? 0 : elements.length;
+		long vertexChecksum = checksum(vertices);
+		long elementChecksum = checksum(elements);
+		if (vertices != m_vertexArray.get() || vertices.length != m_numVertices || vertexChecksum != m_vertexChecksum) {
+			m_vertexVersion++;
+			m_vertexArray = new WeakReference<>(vertices);
+			m_numVertices = vertices.length;
+			m_vertexChecksum = vertexChecksum;
+		}
+		if (elements != m_elementArray.get() || numElements != m_numElements || elementChecksum != m_elementChecksum) {
+			m_elementVersion++;
+			m_elementArray = new WeakReference<>(elements);
+			m_numElements = numElements;
+			m_elementChecksum = elementChecksum;
+		}
+	}
+
+	/**
+	 * @return A hash of the bits of all coordinates, changes if any coordinate changes. Also used by TargetIndex.
+	 */
+	static long checksum(PdVector[] vertices) {
+		long hash = 0;
+		for (PdVector vertex : vertices) {
+			for (double c : vertex.m_data) {
+				hash = mix(hash, Double.doubleToLongBits(c));
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return A hash of the sizes and vertex indices of all elements
+	 */
+	private static long checksum(PiVector[] elements) {
+		long hash = 0;
+		if (elements == null) {
+			return hash;
+		}
+		for (PiVector element : elements) {
+			int size = element.getSize();
+			hash = mix(hash, size);
+			for (int i = 0; i < size; i++) {
+				hash = mix(hash, element.getEntry(i));
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, long value) {
+		// Order dependent, so swapped entries change the hash too
+		return Long.rotateLeft(hash ^ value, 27) * 0x9E3779B97F4A7C15L;
+	}
+
+	public synchronized int getVertexVersion() {
+		return m_vertexVersion;
+	}
+
+	public synchronized int getElementVersion() {
+		return m_elementVersion;
+	}
+
+	public synchronized HalfEdgeMesh getHalfEdges() {
+		if (m_halfEdgesVersion != m_elementVersion) {
+			m_halfEdges = new HalfEdgeMesh(m_geometry.get());
+			m_halfEdgesVersion = m_elementVersion;
+		}
+		return m_halfEdges;
+	}
+
+	/**
+	 * @return The components of the faces with labels and sizes, see Topology.findComponents
+	 */
+	public synchronized Topology.Components getComponents() {
+		if (m_componentsVersion != m_elementVersion) {
+			m_components = Topology.findComponents(getHalfEdges(), ForkJoinPool.commonPool(), true);
+			m_componentsVersion = m_elementVersion;
+		}
+		return m_components;
+	}
+
+	public synchronized HalfEdgeMesh.Manifoldness getManifoldness() {
+		if (m_manifoldnessVersion != m_elementVersion) {
+			m_manifoldness = getHalfEdges().checkManifold();
+			m_manifoldnessVersion = m_elementVersion;
+		}
+		return m_manifoldness;
+	}
+
+	public synchronized int getNumBoundaryLoops() {
+		if (m_numBoundaryLoopsVersion != m_elementVersion) {
+			m_numBoundaryLoops = getHalfEdges().countBoundaryLoops();
+			m_numBoundaryLoopsVersion = m_elementVersion;
+		}
+		return m_numBoundaryLoops;
+	}
+
+	/**
+	 * @return The genus from V - E + F = 2c - 2g - b, summed over the components
+	 */
+	public synchronized int getGenus() {
+		HalfEdgeMesh mesh = getHalfEdges();
+		return (2 * getComponents().m_count - mesh.getEulerCharacteristic() - getNumBoundaryLoops()) / 2;
+	}
+
+	/**
+	 * @return The boundary loops with their perimeters, see HalfEdgeMesh.getBoundaryLoops
+	 */
+	public synchronized List<HalfEdgeMesh.BoundaryLoop> getBoundaryLoops() {
+		if (m_loopsVertexVersion != m_vertexVersion || m_loopsElementVersion != m_elementVersion) {
+			m_loops = getHalfEdges().getBoundaryLoops(m_geometry.get().getVertices());
+			m_loopsVertexVersion = m_vertexVersion;
+			m_loopsElementVersion = m_elementVersion;
+		}
+		return m_loops;
+	}
+
+	/**
+	 * @return Volume, area, centroid and inertia tensor, summed on the common pool
+	 */
+	public synchronized MeshIntegrals getIntegrals() {
+		if (m_integralsVertexVersion != m_vertexVersion || m_integralsElementVersion != m_elementVersion) {
+			m_integrals = new MeshIntegrals(m_geometry.get(), ForkJoinPool.commonPool());
+			m_integralsVertexVersion = m_vertexVersion;
+			m_integralsElementVersion = m_elementVersion;
+		}
+		return m_integrals;
+	}
+}
@@ -0,0 +1,414 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+import jv.vecmath.PiVector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Connectivity of a PgElementSet as half-edges on primitive arrays, built in a single pass over the elements.
+ * The half-edges of element f are m_faceStart[f] up to m_faceStart[f + 1], in the order of its vertices;
+ * half-edge h leaves vertex m_origin[h] towards the origin of next(h). Every half-edge knows its element and
+ * its undirected edge, every edge its first half-edge and the number of half-edges on it, and for an edge with
+ * exactly two half-edges these are each other's twin. That is four ints per half-edge and two per edge,
+ * plus the outgoing half-edges of every vertex in compressed rows.
+ * Only depends on the elements, so moving the vertices keeps it valid.
+ */
+public class HalfEdgeMesh {
+
+	private final int m_numVertices;
+	private final int m_numElements;
+	private final int m_numEdges;
+
+	/** Per element the first half-edge, and the number of half-edges at the end */
+	final int[] m_faceStart;
+	/** Per half-edge: start vertex, element, undirected edge, and the other half-edge of the edge or -1 */
+	final int[] m_origin;
+	final int[] m_face;
+	final int[] m_edge;
+	final int[] m_twin;
+	/** Per edge: first half-edge and number of half-edges, 1 on the boundary and more than 2 if not manifold */
+	final int[] m_edgeHalf;
+	final int[] m_edgeValence;
+	/** The half-edges leaving vertex v are m_outgoing[m_vertexStart[v]] up to m_outgoing[m_vertexStart[v + 1]] */
+	final int[] m_vertexStart;
+	final int[] m_outgoing;
+
+	public HalfEdgeMesh(PgElementSet geometry) {
+		m_numVertices = geometry.getVertices().length;
+		PiVector[] elements = geometry.getElements();
+		m_numElements = (elements == null) ? 0 : elements.length;
+
+		m_faceStart = new int[m_numElements + 1];
+		for (int f = 0; f < m_numElements; f++) {
+			m_faceStart[f + 1] = m_faceStart[f] + elements[f].getSize();
+		}
+		int numHalfEdges = m_faceStart[m_numElements];
+		m_origin = new int[numHalfEdges];
+		m_face = new int[numHalfEdges];
+		m_edge = new int[numHalfEdges];
+		m_twin = new int[numHalfEdges];
+		int[] edgeHalf = new int[Math.max(16, numHalfEdges / 2 + 1)];
+		int[] edgeValence = new int[edgeHalf.length];
+		m_vertexStart = new int[m_numVertices + 1];
+
+		// Edges are numbered in the order they are first met
+		LongIntHashMap edges = new LongIntHashMap(numHalfEdges / 2);
+		int numEdges = 0;
+		for (int f = 0; f < m_numElements; f++) {
+			int[] v = elements[f].getEntries();
+			int size = elements[f].getSize();
+			for (int j = 0; j < size; j++) {
+				int h = m_faceStart[f] + j;
+				int a = v[j], b = v[(j + 1) % size];
+				m_origin[h] = a;
+				m_face[h] = f;
+				m_twin[h] = -1;
+				m_vertexStart[a + 1]++;
+				long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+				int e = edges.get(key);
+				if (e == LongIntHashMap.MISSING) {
+					e = numEdges++;
+					edges.put(key, e);
+					if (e == edgeHalf.length) {
+						edgeHalf = Arrays.copyOf(edgeHalf, e * 2);
+						edgeValence = Arrays.copyOf(edgeValence, e * 2);
+					}
+					edgeHalf[e] = h;
+				}
+				m_edge[h] = e;
+				edgeValence[e]++;
+			}
+		}
+		m_numEdges = numEdges;
+		m_edgeHalf = Arrays.copyOf(edgeHalf, numEdges);
+		m_edgeValence = Arrays.copyOf(edgeValence, numEdges);
+
+		// Twins only where an edge has exactly two half-edges
+		for (int h = 0; h < numHalfEdges; h++) {
+			int e = m_edge[h];
+			if (m_edgeValence[e] == 2 && m_edgeHalf[e] != h) {
+				m_twin[h] = m_edgeHalf[e];
+				m_twin[m_edgeHalf[e]] = h;
+			}
+		}
+
+		for (int i = 0; i < m_numVertices; i++) {
+			m_vertexStart[i + 1] += m_vertexStart[i];
+		}
+		m_outgoing = new int[numHalfEdges];
+		int[] fill = Arrays.copyOf(m_vertexStart, m_numVertices);
+		for (int h = 0; h < numHalfEdges; h++) {
+			m_outgoing[fill[m_origin[h]]++] = h;
+		}
+	}
+
+	public int getNumVertices() {
+		return m_numVertices;
+	}
+
+	public int getNumEdges() {
+		return m_numEdges;
+	}
+
+	public int getNumElements() {
+		return m_numElements;
+	}
+
+	public int getNumHalfEdges() {
+		return m_origin.length;
+	}
+
+	/**
+	 * @return The half-edge after h in its element
+	 */
+	public int next(int h) {
+		int f = m_face[h];
+		return (h + 1 < m_faceStart[f + 1]) ? h + 1 : m_faceStart[f];
+	}
+
+	/**
+	 * @return The half-edge before h in its element, the one that ends at the origin of h
+	 */
+	public int prev(int h) {
+		int f = m_face[h];
+		return (h > m_faceStart[f]) ? h - 1 : m_faceStart[f + 1] - 1;
+	}
+
+	/**
+	 * @return The vertex h points to
+	 */
+	public int target(int h) {
+		return m_origin[next(h)];
+	}
+
+	public boolean isBoundary(int h) {
+		return m_edgeValence[m_edge[h]] == 1;
+	}
+
+	/**
+	 * @return The number of vertices that belong to at least one element
+	 */
+	public int getNumUsedVertices() {
+		int used = 0;
+		for (int v = 0; v < m_numVertices; v++) {
+			if (m_vertexStart[v + 1] > m_vertexStart[v]) {
+				used++;
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * @return V - E + F over the vertices that belong to an element
+	 */
+	public int getEulerCharacteristic() {
+		return getNumUsedVertices() - m_numEdges + m_numElements;
+	}
+
+	/**
+	 * Writes the vertices connected to v by an edge to ring, each once, in the order of the outgoing half-edges.
+	 * @param ring Has room for at least twice the number of outgoing half-edges of v
+	 * @return The number of neighbours
+	 */
+	public int ring(int v, int[] ring) {
+		int count = 0;
+		for (int i = m_vertexStart[v]; i < m_vertexStart[v + 1]; i++) {
+			int h = m_outgoing[i];
+			count = addOnce(ring, count, target(h));
+			// The edge into v of the same element, its origin is missed by the outgoing half-edges on the boundary
+			count = addOnce(ring, count, m_origin[prev(h)]);
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of outgoing half-edges of v
+	 */
+	public int degree(int v) {
+		return m_vertexStart[v + 1] - m_vertexStart[v];
+	}
+
+	private static int addOnce(int[] values, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (values[i] == value) {
+				return count;
+			}
+		}
+		values[count] = value;
+		return count + 1;
+	}
+
+	/**
+	 * Merges the elements that share an edge, see Topology.findComponents.
+	 */
+	public DisjointSet connectElements(ForkJoinPool pool, int grain) {
+		DisjointSet faces = new DisjointSet(m_numElements);
+		ParallelRange.forEach(pool, m_origin.length, grain, (lo, hi) -> {
+			for (int h = lo; h < hi; h++) {
+				int first = m_edgeHalf[m_edge[h]];
+				if (first != h) {
+					faces.union(m_face[first], m_face[h]);
+				}
+			}
+		});
+		return faces;
+	}
+
+	/**
+	 * @return The number of boundary loops, see getBoundaryLoops
+	 */
+	public int countBoundaryLoops() {
+		return getBoundaryLoops(null).size();
+	}
+
+	/**
+	 * Extracts the chains of boundary half-edges as ordered vertices, in O(H). From a boundary half-edge the next one
+	 * is found by turning around its end vertex through the elements, so a vertex where several boundaries meet is
+	 * passed along the right chain, and elements of opposite orientation are crossed. A turn that hits an edge of more
+	 * than two elements ends the chain there, the loop is then open and also followed backwards from its first edge.
+	 * @param vertices The vertices of the geometry for the perimeters, may be null
+	 * @return The loops in the order of their first half-edge
+	 */
+	public List<BoundaryLoop> getBoundaryLoops(PdVector[] vertices) {
+		boolean[] visited = new boolean[m_origin.length];
+		int[] forward = new int[m_origin.length + 1];
+		int[] backward = new int[m_origin.length + 1];
+		List<BoundaryLoop> loops = new ArrayList<>();
+		for (int h = 0; h < m_origin.length; h++) {
+			if (visited[h] || !isBoundary(h)) {
+				continue;
+			}
+			visited[h] = true;
+			int count = 0;
+			forward[count++] = m_origin[h];
+			forward[count++] = target(h);
+			int b = h, vertex = target(h);
+			boolean closed = false;
+			while (true) {
+				b = nextBoundary(b, vertex);
+				if (b == h) {
+					closed = true;
+					break;
+				}
+				if (b < 0 || visited[b]) {
+					break;
+				}
+				visited[b] = true;
+				vertex = otherEnd(b, vertex);
+				forward[count++] = vertex;
+			}
+			if (closed) {
+				// The last edge leads back to the first vertex
+				count--;
+			}
+
+			int countBackward = 0;
+			if (!closed) {
+				b = h;
+				vertex = m_origin[h];
+				while ((b = nextBoundary(b, vertex)) >= 0 && !visited[b]) {
+					visited[b] = true;
+					vertex = otherEnd(b, vertex);
+					backward[countBackward++] = vertex;
+				}
+			}
+
+			int[] loop = new int[countBackward + count];
+			for (int i = 0; i < countBackward; i++) {
+				loop[i] = backward[countBackward - 1 - i];
+			}
+			System.arraycopy(forward, 0, loop, countBackward, count);
+			loops.add(new BoundaryLoop(loop, closed, vertices));
+		}
+		return loops;
+	}
+
+	/**
+	 * @param h A boundary half-edge with one end at vertex
+	 * @return The next boundary half-edge at vertex, reached by turning around it, -1 if the turn is blocked
+	 */
+	int nextBoundary(int h, int vertex) {
+		int g = otherAt(h, vertex);
+		for (int turns = 0; turns <= degree(vertex); turns++) {
+			if (isBoundary(g)) {
+				return g;
+			}
+			if (m_twin[g] < 0) {
+				// Edge of more than two elements
+				return -1;
+			}
+			g = otherAt(m_twin[g], vertex);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The other half-edge of the element of h that has an end at vertex, an end of h
+	 */
+	int otherAt(int h, int vertex) {
+		return (m_origin[h] == vertex) ? prev(h) : next(h);
+	}
+
+	/**
+	 * @return The end of h that is not vertex
+	 */
+	int otherEnd(int h, int vertex) {
+		return (m_origin[h] == vertex) ? target(h) : m_origin[h];
+	}
+
+	/**
+	 * Checks that every edge has at most two elements and that the elements around every vertex form a single fan,
+	 * by merging the corners of a vertex across its edges with two elements.
+	 */
+	public Manifoldness checkManifold() {
+		int nonManifoldEdges = 0;
+		for (int e = 0; e < m_numEdges; e++) {
+			if (m_edgeValence[e] > 2) {
+				nonManifoldEdges++;
+			}
+		}
+		// The corner of half-edge h is its origin in its element
+		DisjointSet corners = new DisjointSet(m_origin.length);
+		for (int h = 0; h < m_origin.length; h++) {
+			int twin = m_twin[h];
+			if (twin > h) {
+				// Both ends of the edge, whatever the orientation of the twin
+				int a = m_origin[h], b = target(h);
+				corners.union(h, (m_origin[twin] == a) ? twin : next(twin));
+				corners.union(next(h), (m_origin[twin] == b) ? twin : next(twin));
+			}
+		}
+		int nonManifoldVertices = 0;
+		for (int v = 0; v < m_numVertices; v++) {
+			int fans = 0;
+			for (int i = m_vertexStart[v]; i < m_vertexStart[v + 1]; i++) {
+				if (corners.find(m_outgoing[i]) == m_outgoing[i]) {
+					fans++;
+				}
+			}
+			if (fans > 1) {
+				nonManifoldVertices++;
+			}
+		}
+		return new Manifoldness(nonManifoldEdges, nonManifoldVertices);
+	}
+
+	/** A chain of boundary edges, see getBoundaryLoops */
+	public static class BoundaryLoop {
+		/** The vertices in the order of the chain, the first one is not repeated at the end of a closed loop */
+		public final int[] m_vertices;
+		/** False if the chain ends at an edge of more than two elements */
+		public final boolean m_closed;
+		/** The sum of the lengths of the edges, NaN if the vertices were not given */
+		public final double m_perimeter;
+
+		BoundaryLoop(int[] vertices, boolean closed, PdVector[] coordinates) {
+			m_vertices = vertices;
+			m_closed = closed;
+			double perimeter = Double.NaN;
+			if (coordinates != null) {
+				perimeter = 0;
+				int edges = getNumEdges();
+				for (int i = 0; i < edges; i++) {
+					perimeter += coordinates[vertices[i]].dist(coordinates[vertices[(i + 1) % vertices.length]]);
+				}
+			}
+			m_perimeter = perimeter;
+		}
+
+		/**
+		 * @return The number of edges of the loop
+		 */
+		public int getNumEdges() {
+			return m_closed ? m_vertices.length : m_vertices.length - 1;
+		}
+	}
+
+	/** Result of checkManifold */
+	public static class Manifoldness {
+		/** Edges with more than two elements */
+		public final int m_nonManifoldEdges;
+		/** Vertices whose elements form more than one fan */
+		public final int m_nonManifoldVertices;
+
+		Manifoldness(int nonManifoldEdges, int nonManifoldVertices) {
+			m_nonManifoldEdges = nonManifoldEdges;
+			m_nonManifoldVertices = nonManifoldVertices;
+		}
+
+		public boolean isManifold() {
+			return m_nonManifoldEdges == 0 && m_nonManifoldVertices == 0;
+		}
+
+		@Override
+		public String toString() {
+			return isManifold() ? "manifold"
+					: String.format("%d non-manifold edges, %d non-manifold vertices", m_nonManifoldEdges, m_nonManifoldVertices);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+import jv.vecmath.PiVector;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Headless benchmark of the registration of a RigidTransformation.
+ * Runs every combination of the parameter grids for a number of trials and collects wall time, steps and error.
+ * Every trial resets P and Q, moves Q by randomRotationQ and randomTranslationQ and registers P onto it.
+ * The registration accumulates its transform while running, so P is only updated once per trial,
+ * and nothing is printed. The results can be written as CSV.
+ * main runs the default configuration on two OBJ files without a viewer.
+ */
+public class IcpBenchmark {
+
+	private final RigidTransformation m_registration;
+	private int[] m_nrVertices = {250};
+	private double[] m_k = {3};
+	private int[] m_maxSteps = {500};
+	private double[] m_maxError = {0.020};
+	private int m_trials = 25;
+	private int m_translationSize = 10;
+	private long m_seed = 0;
+
+	/**
+	 * @param registration The registration to benchmark, with its geometries and options already set
+	 */
+	public IcpBenchmark(RigidTransformation registration) {
+		m_registration = registration;
+	}
+
+	public void setSampleSizes(int... nrVertices) {
+		m_nrVertices = nrVertices;
+	}
+
+	public void setKs(double... k) {
+		m_k = k;
+	}
+
+	public void setMaxSteps(int... maxSteps) {
+		m_maxSteps = maxSteps;
+	}
+
+	public void setMaxErrors(double... maxError) {
+		m_maxError = maxError;
+	}
+
+	public void setTrials(int trials) {
+		m_trials = trials;
+	}
+
+	/**
+	 * @param translationSize The size passed to randomTranslationQ, 0 to only rotate Q
+	 */
+	public void setTranslationSize(int translationSize) {
+		m_translationSize = translationSize;
+	}
+
+	/**
+	 * @param seed The seed for the perturbations and the sampling, the same seed gives the same trials
+	 */
+	public void setSeed(long seed) {
+		m_seed = seed;
+	}
+
+	/**
+	 * Runs all configurations. P and Q are reset afterwards and the registration gets its random generator back,
+	 * so later random motions and samples do not repeat the trials.
+	 * @return One result per configuration
+	 */
+	public List<Result> run() {
+		List<Result> results = new ArrayList<>();
+		boolean accumulate = m_registration.m_accumulate;
+		int displayInterval = m_registration.m_displayInterval;
+		Random random = m_registration.m_random;
+		// Same result as moving P every step, without timing the mesh updates
+		m_registration.setAccumulateTransform(true, 0);
+		m_registration.setSeed(m_seed);
+		try {
+			for (int nrVertices : m_nrVertices) {
+				for (double k : m_k) {
+					for (int maxSteps : m_maxSteps) {
+						for (double maxError : m_maxError) {
+							results.add(runConfig(nrVertices, k, maxSteps, maxError));
+						}
+					}
+				}
+			}
+		} finally {
+			m_registration.setAccumulateTransform(accumulate, displayInterval);
+			m_registration.m_random = random;
+			m_registration.reset();
+		}
+		return results;
+	}
+
+	private Result runConfig(int nrVertices, double k, int maxSteps, double maxError) {
+		Result result = new Result(nrVertices, k, maxSteps, maxError, m_trials);
+		for (int i = 0; i < m_trials; i++) {
+			m_registration.reset();
+			m_registration.randomRotationQ();
+			if (m_translationSize > 0) {
+				m_registration.randomTranslationQ(m_translationSize);
+			}
+
+			long start = System.nanoTime();
+			PdVector trial = m_registration.register(nrVertices, k, maxSteps, maxError);
+			result.m_timeMs[i] = (System.nanoTime() - start) / 1e6;
+			result.m_steps[i] = (int) trial.getEntry(0);
+			result.m_error[i] = trial.getEntry(1);
+		}
+		return result;
+	}
+
+	/**
+	 * Benchmarks the registration of one OBJ file onto another with the default configuration and writes the CSV.
+	 * Usage: IcpBenchmark P.obj Q.obj [results.csv [trials]]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: IcpBenchmark P.obj Q.obj [results.csv [trials]]");
+			System.exit(2);
+		}
+		RigidTransformation registration = new RigidTransformation();
+		registration.setGeometries(readObj(args[0]), readObj(args[1]));
+		registration.setParallelism(Runtime.getRuntime().availableProcessors());
+		IcpBenchmark benchmark = new IcpBenchmark(registration);
+		if (args.length > 3) {
+			benchmark.setTrials(Integer.parseInt(args[3]));
+		}
+		String output = (args.length > 2) ? args[2] : "icp_benchmark.csv";
+		try (Writer writer = new FileWriter(output)) {
+			writeCsv(benchmark.run(), writer);
+		}
+	}
+
+	/**
+	 * Reads the vertices and faces of an OBJ file, with negative indices relative to the vertices read so far.
+	 */
+	static PgElementSet readObj(String fileName) throws IOException {
+		List<PdVector> vertices = new ArrayList<>();
+		List<PiVector> elements = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] tokens = line.trim().split("\\s+");
+				if (tokens[0].equals("v") && tokens.length >= 4) {
+					vertices.add(new PdVector(Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]),
+							Double.parseDouble(tokens[3])));
+				} else if (tokens[0].equals("f") && tokens.length >= 4) {
+					int[] face = new int[tokens.length - 1];
+					for (int i = 0; i < face.length; i++) {
+						// Texture and normal indices follow a slash
+						int index = Integer.parseInt(tokens[i + 1].split("/")[0]);
+						face[i] = (index > 0) ? index - 1 : vertices.size() + index;
+						if (index == 0 || face[i] < 0 || face[i] >= vertices.size()) {
+							throw new IOException(fileName + ": vertex index " + index + " out of range");
+						}
+					}
+					elements.add(new PiVector(face));
+				}
+			}
+		}
+		PgElementSet geometry = new PgElementSet(3);
+		geometry.setName(fileName);
+		geometry.setVertices(vertices.toArray(new PdVector[0]));
+		geometry.setElements(elements.toArray(new PiVector[0]));
+		return geometry;
+	}
+
+	/**
+	 * Writes one line per result with the configuration, the wall time statistics, the mean steps,
+	 * the mean error and the fraction of trials that reached the maximum number of steps.
+	 */
+	public static void writeCsv(List<Result> results, Writer writer) throws IOException {
+		writer.write("nrVertices,k,maxSteps,maxError,trials,meanTimeMs,minTimeMs,maxTimeMs,meanSteps,meanError,maxStepsReachedRate\n");
+		for (Result result : results) {
+			writer.write(String.format(Locale.ROOT, "%d,%s,%d,%s,%d,%.3f,%.3f,%.3f,%.2f,%.6g,%.3f%n",
+					result.m_nrVertices, result.m_k, result.m_maxSteps, result.m_maxError, result.m_timeMs.length,
+					result.getMeanTimeMs(), result.getMinTimeMs(), result.getMaxTimeMs(),
+					result.getMeanSteps(), result.getMeanError(), result.getMaxStepsReachedRate()));
+		}
+		writer.flush();
+	}
+
+	/** The trials of one configuration */
+	public static class Result {
+		public final int m_nrVertices;
+		public final double m_k;
+		public final int m_maxSteps;
+		public final double m_maxError;
+		/** Wall time, steps and lowest error per trial */
+		public final double[] m_timeMs;
+		public final int[] m_steps;
+		public final double[] m_error;
+
+		Result(int nrVertices, double k, int maxSteps, double maxError, int trials) {
+			m_nrVertices = nrVertices;
+			m_k = k;
+			m_maxSteps = maxSteps;
+			m_maxError = maxError;
+			m_timeMs = new double[trials];
+			m_steps = new int[trials];
+			m_error = new double[trials];
+		}
+
+		public double getMeanTimeMs() {
+			double sum = 0;
+			for (double time : m_timeMs) sum += time;
+			return sum / m_timeMs.length;
+		}
+
+		public double getMinTimeMs() {
+			double min = Double.MAX_VALUE;
+			for (double time : m_timeMs) min = Math.min(min, time);
+			return min;
+		}
+
+		public double getMaxTimeMs() {
+			double max = 0;
+			for (double time : m_timeMs) max = Math.max(max, time);
+			return max;
+		}
+
+		public double getMeanSteps() {
+			double sum = 0;
+			for (int steps : m_steps) sum += steps;
+			return sum / m_steps.length;
+		}
+
+		public double getMeanError() {
+			double sum = 0;
+			for (double error : m_error) sum += error;
+			return sum / m_error.length;
+		}
+
+		/**
+		 * @return The fraction of trials that stopped at maxSteps without reaching maxError
+		 */
+		public double getMaxStepsReachedRate() {
+			int reached = 0;
+			for (int steps : m_steps) {
+				if (steps >= m_maxSteps) reached++;
+			}
+			return reached / (double) m_steps.length;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package workshop;
+
+/**
+ * Accelerates ICP by extrapolating the accumulated motion, after Besl and McKay (1992).
+ * The motion is seen as a point in the 7 parameters of RigidMotion.getParameters. When the last two steps point
+ * in nearly the same direction, a line and a parabola are fitted to the last three residuals over the arc length
+ * and the motion jumps ahead to the zero of the line or the minimum of the parabola.
+ * If the error of the next step is larger than before the jump, rollback restores the plain step.
+ */
+public class IcpExtrapolator {
+
+	/** Largest angle between two successive steps that still counts as the same direction */
+	private static final double MAX_ANGLE = Math.toRadians(10);
+	/** A jump is at most this many times the length of the last step */
+	private static final double MAX_FACTOR = 25;
+
+	/** The last three motions and their residuals, newest first */
+	private final double[][] m_parameters = new double[3][7];
+	private final double[] m_residual = new double[3];
+	private final double[] m_jumped = new double[7];
+	private int m_count;
+
+	/** The motion before the last jump and the error of the step that led to it */
+	private final RigidMotion m_plain = new RigidMotion();
+	private double m_errorBefore;
+	private boolean m_extrapolated;
+
+	/**
+	 * Forgets the history, needed whenever the motion is changed by anything else than a step.
+	 */
+	public void reset() {
+		m_count = 0;
+		m_extrapolated = false;
+	}
+
+	/**
+	 * Records the motion after a plain step and replaces it by the extrapolated motion if the history allows it.
+	 * @param motion The accumulated motion after the step
+	 * @param error The error of the step, measured before it was applied
+	 * @param residual The error of the same pairs after the step was applied
+	 * @return True if the motion was extrapolated
+	 */
+	public boolean update(RigidMotion motion, double error, double residual) {
+		double[] newest = m_parameters[2];
+		m_parameters[2] = m_parameters[1];
+		m_parameters[1] = m_parameters[0];
+		m_parameters[0] = newest;
+		m_residual[2] = m_residual[1];
+		m_residual[1] = m_residual[0];
+		m_residual[0] = residual;
+		motion.getParameters(newest);
+		m_count = Math.min(m_count + 1, 3);
+		if (m_count < 3) {
+			return false;
+		}
+
+		double[] q0 = m_parameters[0], q1 = m_parameters[1], q2 = m_parameters[2];
+		double length = 0, lastLength = 0, dot = 0;
+		for (int i = 0; i < 7; i++) {
+			double d = q0[i] - q1[i];
+			double last = q1[i] - q2[i];
+			length += d * d;
+			lastLength += last * last;
+			dot += d * last;
+		}
+		length = Math.sqrt(length);
+		lastLength = Math.sqrt(lastLength);
+		if (length == 0 || lastLength == 0 || Math.acos(Math.min(1, dot / (length * lastLength))) > MAX_ANGLE) {
+			return false;
+		}
+
+		double v = jump(length, lastLength);
+		if (v <= 0) {
+			return false;
+		}
+		m_plain.set(motion);
+		m_errorBefore = error;
+		double[] jumped = m_jumped;
+		for (int i = 0; i < 7; i++) {
+			jumped[i] = q0[i] + v * (q0[i] - q1[i]) / length;
+		}
+		motion.setParameters(jumped);
+		// The next jump needs a fresh history
+		m_count = 0;
+		m_extrapolated = true;
+		return true;
+	}
+
+	/**
+	 * Undoes the last jump if the error of the following step is larger than the error before the jump.
+	 * Has to be called with the error of every step, before update.
+	 * @param motion The accumulated motion, set back to the plain step on a rollback
+	 * @return True if the motion was rolled back, the step should then be skipped
+	 */
+	public boolean rollback(RigidMotion motion, double error) {
+		boolean rollback = m_extrapolated && error > m_errorBefore;
+		m_extrapolated = false;
+		if (rollback) {
+			motion.set(m_plain);
+		}
+		return rollback;
+	}
+
+	/**
+	 * Fits a line and a parabola to the residuals over the arc length, the newest motion at 0.
+	 * @return How far to jump along the last step, 0 if neither fit gives a usable distance
+	 */
+	private double jump(double length, double lastLength) {
+		double v0 = 0, v1 = -length, v2 = -length - lastLength;
+		double d0 = m_residual[0], d1 = m_residual[1], d2 = m_residual[2];
+		double max = MAX_FACTOR * length;
+
+		// Least squares line through the three residuals, its zero
+		double meanV = (v0 + v1 + v2) / 3, meanD = (d0 + d1 + d2) / 3;
+		double svv = (v0 - meanV) * (v0 - meanV) + (v1 - meanV) * (v1 - meanV) + (v2 - meanV) * (v2 - meanV);
+		double svd = (v0 - meanV) * (d0 - meanD) + (v1 - meanV) * (d1 - meanD) + (v2 - meanV) * (d2 - meanD);
+		double slope = svd / svv;
+		double vLine = (slope < 0) ? meanV - meanD / slope : 0;
+
+		// Parabola through the three residuals, its vertex
+		double s01 = (d0 - d1) / (v0 - v1);
+		double s12 = (d1 - d2) / (v1 - v2);
+		double a = (s01 - s12) / (v0 - v2);
+		double b = s01 - a * (v0 + v1);
+		double vParabola = (a > 0) ? -b / (2 * a) : 0;
+
+		if (0 < vParabola && vParabola < Math.min(vLine, max)) {
+			return vParabola;
+		}
+		if (0 < vLine && vLine < max) {
+			return vLine;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,362 @@
+package workshop;
+
+/**
+ * Point-to-point ICP fitting over primitive xyz buffers.
+ * The buffers are reused between steps, so a step creates no garbage once they are large enough.
+ * The optimal rotation is found with Horn's quaternion method: the eigenvector of the largest eigenvalue
+ * of a symmetric 4x4 matrix built from the cross-covariance, solved with Jacobi rotations.
+ */
+public class IcpKernel {
+
+	/** Robust weight functions for weigh */
+	public static final int HUBER = 1;
+	public static final int TUKEY = 2;
+	public static final int CAUCHY = 3;
+	/** Tuning constants of the weight functions for 95% efficiency on Gaussian residuals, indexed by the function */
+	private static final double[] TUNING = {0, 1.345, 4.685, 2.385};
+	/** Turns the median absolute residual into a standard deviation for Gaussian residuals */
+	private static final double MAD_SCALE = 1.4826;
+
+	/** Samples of P, xyz interleaved */
+	double[] m_p = new double[0];
+	/** The matched points on Q, xyz interleaved */
+	double[] m_q = new double[0];
+	/** Distance of every pair */
+	double[] m_dist = new double[0];
+	/** True for the pairs that are used by fit */
+	boolean[] m_keep = new boolean[0];
+	/** Weight of every pair in fit, 0 or 1 after reject */
+	double[] m_weight = new double[0];
+	/** Number of pairs in the buffers */
+	int m_size;
+
+	/** Result of the last fit: rotation (row major) and translation mapping the samples of P onto Q */
+	final double[] m_rotation = new double[9];
+	final double[] m_translation = new double[3];
+	/** Median distance and number of kept pairs of the last reject */
+	double m_median;
+	int m_kept;
+
+	private double[] m_select = new double[0];
+	private final double[] m_n = new double[16];
+	private final double[] m_eigenvectors = new double[16];
+
+	/**
+	 * Sets the number of pairs, growing the buffers if needed. The content of the buffers is undefined afterwards.
+	 */
+	public void setSize(int size) {
+		if (m_dist.length < size) {
+			m_p = new double[size * 3];
+			m_q = new double[size * 3];
+			m_dist = new double[size];
+			m_keep = new boolean[size];
+			m_weight = new double[size];
+			m_select = new double[size];
+		}
+		m_size = size;
+	}
+
+	/**
+	 * Computes the distances of all pairs and rejects those further than median * k,
+	 * the same rule as RigidTransformation.getRemoveList. The median is found by selection, not by sorting.
+	 * @return The number of kept pairs
+	 */
+	public int reject(double k) {
+		int n = m_size;
+		computeDistances();
+		m_median = median(m_dist, m_select, n);
+
+		double threshold = m_median * k;
+		m_kept = 0;
+		for (int i = 0; i < n; i++) {
+			m_keep[i] = !(threshold < m_dist[i]);
+			m_weight[i] = m_keep[i] ? 1 : 0;
+			if (m_keep[i]) m_kept++;
+		}
+		return m_kept;
+	}
+
+	/**
+	 * Computes the distances of all pairs and weights them with a robust function instead of a hard cut,
+	 * one step of iteratively reweighted least squares. The residuals are scaled by 1.4826 times their median,
+	 * found by selection in linear time.
+	 * @param function HUBER, TUKEY or CAUCHY
+	 * @return The number of pairs with a weight above 0
+	 */
+	public int weigh(int function) {
+		int n = m_size;
+		computeDistances();
+		m_median = median(m_dist, m_select, n);
+
+		double scale = MAD_SCALE * m_median * TUNING[function];
+		m_kept = 0;
+		for (int i = 0; i < n; i++) {
+			double u = (scale > 0) ? m_dist[i] / scale : 0;
+			double weight;
+			if (function == HUBER) {
+				weight = (u <= 1) ? 1 : 1 / u;
+			} else if (function == TUKEY) {
+				weight = (u < 1) ? (1 - u * u) * (1 - u * u) : 0;
+			} else {
+				weight = 1 / (1 + u * u);
+			}
+			m_weight[i] = weight;
+			m_keep[i] = weight > 0;
+			if (m_keep[i]) m_kept++;
+		}
+		return m_kept;
+	}
+
+	private void computeDistances() {
+		for (int i = 0; i < m_size; i++) {
+			double dx = m_p[i * 3] - m_q[i * 3];
+			double dy = m_p[i * 3 + 1] - m_q[i * 3 + 1];
+			double dz = m_p[i * 3 + 2] - m_q[i * 3 + 2];
+			m_dist[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+	}
+
+	/**
+	 * Fits the rigid motion to the kept pairs in a single pass over the buffers, every pair counted with its weight.
+	 * The result is stored in m_rotation and m_translation.
+	 * @return The MSE of the kept pairs before the motion is applied, unweighted so that it compares with the MSE
+	 * after a median cut, Double.MAX_VALUE if no pair is kept
+	 */
+	public double fit() {
+		int n = m_size;
+		int first = 0;
+		while (first < n && !m_keep[first]) first++;
+		if (first == n) {
+			setIdentity();
+			return Double.MAX_VALUE;
+		}
+
+		// Moments are taken relative to the first kept pair, which keeps them well conditioned far from the origin
+		double ox = m_p[first * 3], oy = m_p[first * 3 + 1], oz = m_p[first * 3 + 2];
+		double rx = m_q[first * 3], ry = m_q[first * 3 + 1], rz = m_q[first * 3 + 2];
+		double spx = 0, spy = 0, spz = 0, sqx = 0, sqy = 0, sqz = 0;
+		double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0, szx = 0, szy = 0, szz = 0;
+		double error = 0;
+		double count = 0;
+		int kept = 0;
+		for (int i = first; i < n; i++) {
+			if (!m_keep[i]) continue;
+			double w = m_weight[i];
+			double px = m_p[i * 3] - ox, py = m_p[i * 3 + 1] - oy, pz = m_p[i * 3 + 2] - oz;
+			double qx = m_q[i * 3] - rx, qy = m_q[i * 3 + 1] - ry, qz = m_q[i * 3 + 2] - rz;
+			spx += w * px; spy += w * py; spz += w * pz;
+			sqx += w * qx; sqy += w * qy; sqz += w * qz;
+			double wpx = w * px, wpy = w * py, wpz = w * pz;
+			sxx += wpx * qx; sxy += wpx * qy; sxz += wpx * qz;
+			syx += wpy * qx; syy += wpy * qy; syz += wpy * qz;
+			szx += wpz * qx; szy += wpz * qy; szz += wpz * qz;
+			error += m_dist[i] * m_dist[i];
+			count += w;
+			kept++;
+		}
+		double inv = 1.0 / count;
+		double cpx = spx * inv, cpy = spy * inv, cpz = spz * inv;
+		double cqx = sqx * inv, cqy = sqy * inv, cqz = sqz * inv;
+		// Centred weighted cross-covariance sum w (p - cp)(q - cq)^T
+		sxx -= count * cpx * cqx; sxy -= count * cpx * cqy; sxz -= count * cpx * cqz;
+		syx -= count * cpy * cqx; syy -= count * cpy * cqy; syz -= count * cpy * cqz;
+		szx -= count * cpz * cqx; szy -= count * cpz * cqy; szz -= count * cpz * cqz;
+
+		double[] N = m_n;
+		N[0] = sxx + syy + szz; N[1] = syz - szy;        N[2] = szx - sxz;         N[3] = sxy - syx;
+		N[4] = N[1];            N[5] = sxx - syy - szz;  N[6] = sxy + syx;         N[7] = szx + sxz;
+		N[8] = N[2];            N[9] = N[6];             N[10] = -sxx + syy - szz; N[11] = syz + szy;
+		N[12] = N[3];           N[13] = N[7];            N[14] = N[11];            N[15] = -sxx - syy + szz;
+		int largest = jacobiEigen(N, m_eigenvectors);
+		double w = m_eigenvectors[largest];
+		double x = m_eigenvectors[4 + largest];
+		double y = m_eigenvectors[8 + largest];
+		double z = m_eigenvectors[12 + largest];
+		double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+		w /= norm; x /= norm; y /= norm; z /= norm;
+
+		double[] R = m_rotation;
+		R[0] = w * w + x * x - y * y - z * z; R[1] = 2 * (x * y - w * z);           R[2] = 2 * (x * z + w * y);
+		R[3] = 2 * (x * y + w * z);           R[4] = w * w - x * x + y * y - z * z; R[5] = 2 * (y * z - w * x);
+		R[6] = 2 * (x * z - w * y);           R[7] = 2 * (y * z + w * x);           R[8] = w * w - x * x - y * y + z * z;
+
+		// t = cq - R cp, in absolute coordinates
+		double cPx = cpx + ox, cPy = cpy + oy, cPz = cpz + oz;
+		m_translation[0] = cqx + rx - (R[0] * cPx + R[1] * cPy + R[2] * cPz);
+		m_translation[1] = cqy + ry - (R[3] * cPx + R[4] * cPy + R[5] * cPz);
+		m_translation[2] = cqz + rz - (R[6] * cPx + R[7] * cPy + R[8] * cPz);
+		return error / kept;
+	}
+
+	/**
+	 * @return The MSE of the kept pairs after the motion of the last fit is applied to the samples of P, unweighted as in fit
+	 */
+	public double residual() {
+		double error = 0;
+		int count = 0;
+		double[] R = m_rotation;
+		for (int i = 0; i < m_size; i++) {
+			if (!m_keep[i]) continue;
+			double x = m_p[i * 3], y = m_p[i * 3 + 1], z = m_p[i * 3 + 2];
+			double dx = R[0] * x + R[1] * y + R[2] * z + m_translation[0] - m_q[i * 3];
+			double dy = R[3] * x + R[4] * y + R[5] * z + m_translation[1] - m_q[i * 3 + 1];
+			double dz = R[6] * x + R[7] * y + R[8] * z + m_translation[2] - m_q[i * 3 + 2];
+			error += dx * dx + dy * dy + dz * dz;
+			count++;
+		}
+		return (count == 0) ? Double.MAX_VALUE : error / count;
+	}
+
+	/**
+	 * @return The largest distance a sample of P is moved by the motion of the last fit
+	 */
+	public double maxDisplacement() {
+		double max = 0;
+		double[] R = m_rotation;
+		for (int i = 0; i < m_size; i++) {
+			double x = m_p[i * 3], y = m_p[i * 3 + 1], z = m_p[i * 3 + 2];
+			double dx = R[0] * x + R[1] * y + R[2] * z + m_translation[0] - x;
+			double dy = R[3] * x + R[4] * y + R[5] * z + m_translation[1] - y;
+			double dz = R[6] * x + R[7] * y + R[8] * z + m_translation[2] - z;
+			max = Math.max(max, dx * dx + dy * dy + dz * dz);
+		}
+		return Math.sqrt(max);
+	}
+
+	private void setIdentity() {
+		for (int i = 0; i < 9; i++) {
+			m_rotation[i] = (i % 4 == 0) ? 1 : 0;
+		}
+		m_translation[0] = m_translation[1] = m_translation[2] = 0;
+	}
+
+	/**
+	 * Median of the first n values, the same value as RigidTransformation.getMedian.
+	 * @param scratch Receives a partially ordered copy of the values
+	 */
+	static double median(double[] values, double[] scratch, int n) {
+		if (n == 0) {
+			return 0;
+		}
+		System.arraycopy(values, 0, scratch, 0, n);
+		int middle = n / 2;
+		double upper = select(scratch, 0, n - 1, middle);
+		if (n % 2 == 1) {
+			return upper;
+		}
+		// After the selection all values before middle are not larger, so the lower middle is their maximum
+		double lower = scratch[0];
+		for (int i = 1; i < middle; i++) {
+			if (scratch[i] > lower) lower = scratch[i];
+		}
+		return (upper + lower) / 2.0;
+	}
+
+	/**
+	 * Quickselect: moves the k-th smallest value of [left, right] to slot k, smaller values before it.
+	 * @return The k-th smallest value
+	 */
+	static double select(double[] a, int left, int right, int k) {
+		while (right > left) {
+			int mid = (left + right) >>> 1;
+			if (a[mid] < a[left]) swap(a, mid, left);
+			if (a[right] < a[left]) swap(a, right, left);
+			if (a[right] < a[mid]) swap(a, right, mid);
+			double pivot = a[mid];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (a[i] < pivot) i++;
+				while (a[j] > pivot) j--;
+				if (i <= j) {
+					swap(a, i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				break;
+			}
+		}
+		return a[k];
+	}
+
+	private static void swap(double[] a, int i, int j) {
+		double tmp = a[i];
+		a[i] = a[j];
+		a[j] = tmp;
+	}
+
+	/**
+	 * Eigen decomposition of a symmetric 4x4 matrix, see jacobiEigen(double[], double[], int).
+	 */
+	static int jacobiEigen(double[] a, double[] v) {
+		return jacobiEigen(a, v, 4);
+	}
+
+	/**
+	 * Eigen decomposition of a symmetric n x n matrix with cyclic Jacobi rotations.
+	 * @param a The matrix, row major, destroyed: holds the eigenvalues on its diagonal afterwards
+	 * @param v Receives the eigenvectors as columns, row major
+	 * @return The column of v that belongs to the largest eigenvalue
+	 */
+	static int jacobiEigen(double[] a, double[] v, int n) {
+		for (int i = 0; i < n * n; i++) {
+			v[i] = (i % (n + 1) == 0) ? 1 : 0;
+		}
+		for (int sweep = 0; sweep < 50; sweep++) {
+			double off = 0;
+			double diagonal = 0;
+			for (int p = 0; p < n; p++) {
+				diagonal += Math.abs(a[p * (n + 1)]);
+				for (int q = p + 1; q < n; q++) {
+					off += Math.abs(a[p * n + q]);
+				}
+			}
+			if (off <= 1e-15 * diagonal || off == 0) {
+				break;
+			}
+			for (int p = 0; p < n - 1; p++) {
+				for (int q = p + 1; q < n; q++) {
+					double apq = a[p * n + q];
+					if (apq == 0) continue;
+					double theta = (a[q * (n + 1)] - a[p * (n + 1)]) / (2 * apq);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if (theta == 0) t = 1;
+					double c = 1 / Math.sqrt(t * t + 1);
+					double s = t * c;
+					// a = J^T a J for the rotation J in the (p, q) plane
+					for (int k = 0; k < n; k++) {
+						double akp = a[k * n + p];
+						double akq = a[k * n + q];
+						a[k * n + p] = c * akp - s * akq;
+						a[k * n + q] = s * akp + c * akq;
+					}
+					for (int k = 0; k < n; k++) {
+						double apk = a[p * n + k];
+						double aqk = a[q * n + k];
+						a[p * n + k] = c * apk - s * aqk;
+						a[q * n + k] = s * apk + c * aqk;
+					}
+					for (int k = 0; k < n; k++) {
+						double vkp = v[k * n + p];
+						double vkq = v[k * n + q];
+						v[k * n + p] = c * vkp - s * vkq;
+						v[k * n + q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+		int largest = 0;
+		for (int i = 1; i < n; i++) {
+			if (a[i * (n + 1)] > a[largest * (n + 1)]) {
+				largest = i;
+			}
+		}
+		return largest;
+	}
+}
@@ -0,0 +1,116 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+
+/**
+ * Decimated copies of the surfaces P and Q for coarse-to-fine registration.
+ * Every level clusters the vertices on a voxel grid and keeps the average position per occupied cell,
+ * the cell size halves from one level to the next.
+ */
+public class IcpPyramid {
+
+	/** Number of cells along the bounding box diagonal of Q on the coarsest level */
+	private static final int COARSEST_CELLS = 16;
+
+	/** Points of P and Q per level, xyz interleaved, level 0 is the coarsest */
+	final double[][] m_p;
+	final double[][] m_q;
+	/** Index over the points of Q per level */
+	final KdTree[] m_treeQ;
+	/** Edge length of the voxels per level */
+	final double[] m_cellSize;
+
+	/**
+	 * @param surfP The surface that is moved
+	 * @param surfQ The fixed surface
+	 * @param numLevels The number of decimated levels, not counting the full resolution
+	 */
+	public IcpPyramid(PgElementSet surfP, PgElementSet surfQ, int numLevels) {
+		double[] p = toArray(surfP.getVertices());
+		double[] q = toArray(surfQ.getVertices());
+		double diagonal = diagonal(q);
+
+		m_p = new double[numLevels][];
+		m_q = new double[numLevels][];
+		m_treeQ = new KdTree[numLevels];
+		m_cellSize = new double[numLevels];
+		for (int level = 0; level < numLevels; level++) {
+			m_cellSize[level] = diagonal / (COARSEST_CELLS << level);
+			m_p[level] = decimate(p, m_cellSize[level]);
+			m_q[level] = decimate(q, m_cellSize[level]);
+			m_treeQ[level] = new KdTree(m_q[level]);
+		}
+	}
+
+	public int getNumLevels() {
+		return m_p.length;
+	}
+
+	/**
+	 * @return The coordinates of the vertices, xyz interleaved
+	 */
+	static double[] toArray(PdVector[] vertices) {
+		double[] xyz = new double[vertices.length * 3];
+		for (int i = 0; i < vertices.length; i++) {
+			xyz[i * 3] = vertices[i].getEntry(0);
+			xyz[i * 3 + 1] = vertices[i].getEntry(1);
+			xyz[i * 3 + 2] = vertices[i].getEntry(2);
+		}
+		return xyz;
+	}
+
+	/**
+	 * @return The length of the bounding box diagonal of the points
+	 */
+	static double diagonal(double[] xyz) {
+		double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (int i = 0; i < xyz.length; i++) {
+			int a = i % 3;
+			if (xyz[i] < min[a]) min[a] = xyz[i];
+			if (xyz[i] > max[a]) max[a] = xyz[i];
+		}
+		double dx = max[0] - min[0], dy = max[1] - min[1], dz = max[2] - min[2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Voxel grid clustering: replaces all points in a cell by their average.
+	 * @param xyz The points, xyz interleaved
+	 * @param cellSize The edge length of the cells
+	 * @return One point per occupied cell, xyz interleaved
+	 */
+	static double[] decimate(double[] xyz, double cellSize) {
+		int n = xyz.length / 3;
+		if (n == 0 || cellSize <= 0) {
+			return xyz.clone();
+		}
+		LongIntHashMap cells = new LongIntHashMap(n / 4);
+		double[] sums = new double[xyz.length];
+		int[] counts = new int[n];
+		int numCells = 0;
+		for (int i = 0; i < n; i++) {
+			long key = LongIntHashMap.cellKey(
+					(long) Math.floor(xyz[i * 3] / cellSize),
+					(long) Math.floor(xyz[i * 3 + 1] / cellSize),
+					(long) Math.floor(xyz[i * 3 + 2] / cellSize));
+			int cell = cells.get(key);
+			if (cell == LongIntHashMap.MISSING) {
+				cell = numCells++;
+				cells.put(key, cell);
+			}
+			sums[cell * 3] += xyz[i * 3];
+			sums[cell * 3 + 1] += xyz[i * 3 + 1];
+			sums[cell * 3 + 2] += xyz[i * 3 + 2];
+			counts[cell]++;
+		}
+		double[] points = new double[numCells * 3];
+		for (int cell = 0; cell < numCells; cell++) {
+			for (int a = 0; a < 3; a++) {
+				points[cell * 3 + a] = sums[cell * 3 + a] / counts[cell];
+			}
+		}
+		return points;
+	}
+}
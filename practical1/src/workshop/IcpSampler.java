@@ -0,0 +1,189 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws samples of vertex indices without replacement in O(samples) per call, the buckets are built once.
+ * The indices are grouped into buckets; a sample picks a random non-empty bucket for every index and a random
+ * unused index from it, so every bucket is drawn from equally often until it runs out.
+ * UNIFORM uses a single bucket, STRATIFIED buckets the vertices by a voxel grid, NORMAL_SPACE by the direction
+ * of their normal. The buckets only depend on the shape of P, so they stay valid while P is moved rigidly.
+ */
+public class IcpSampler {
+
+	/** Every vertex is equally likely */
+	public static final int UNIFORM = 0;
+	/** Every occupied cell of a voxel grid is equally likely */
+	public static final int STRATIFIED = 1;
+	/** Every occupied bin of normal directions is equally likely */
+	public static final int NORMAL_SPACE = 2;
+
+	/** Number of voxels along the diagonal of the bounding box for STRATIFIED, the cell size is the diagonal over this */
+	private static final int CELLS_PER_AXIS = 16;
+	/** Number of bins along a side of a cube face for NORMAL_SPACE, 6 * BINS_PER_FACE^2 bins in total */
+	private static final int BINS_PER_FACE = 4;
+
+	/** The indices, grouped by bucket, every bucket kept as a permutation that is shuffled while sampling */
+	private final int[] m_order;
+	/** Bucket b holds m_order[m_bucketStart[b]] up to m_bucketStart[b + 1] */
+	private final int[] m_bucketStart;
+	/** The bucket of every index */
+	private final int[] m_bucketOf;
+	/** Indices drawn from every bucket in the current call */
+	private final int[] m_used;
+	/** The non-empty buckets. During a call the exhausted ones are swapped behind the first numActive entries */
+	private final int[] m_active;
+
+	/**
+	 * Uniform sampler over the indices 0 to size - 1.
+	 */
+	public IcpSampler(int size) {
+		this(new int[size]);
+	}
+
+	/**
+	 * Sampler over the vertices of a mesh.
+	 * @param strategy One of UNIFORM, STRATIFIED and NORMAL_SPACE. NORMAL_SPACE computes the vertex normals if the mesh has none.
+	 */
+	public IcpSampler(PgElementSet mesh, int strategy) {
+		this(bucketsOf(mesh, strategy));
+	}
+
+	private IcpSampler(int[] buckets) {
+		int size = buckets.length;
+		int numBuckets = 0;
+		for (int bucket : buckets) {
+			numBuckets = Math.max(numBuckets, bucket + 1);
+		}
+		m_order = new int[size];
+		m_bucketOf = buckets;
+		m_bucketStart = new int[numBuckets + 1];
+		m_used = new int[numBuckets];
+		// Counting sort of the indices by bucket
+		for (int i = 0; i < size; i++) {
+			m_bucketStart[buckets[i] + 1]++;
+		}
+		for (int b = 0; b < numBuckets; b++) {
+			m_bucketStart[b + 1] += m_bucketStart[b];
+		}
+		int[] next = Arrays.copyOf(m_bucketStart, numBuckets);
+		for (int i = 0; i < size; i++) {
+			m_order[next[buckets[i]]++] = i;
+		}
+		int numActive = 0;
+		int[] active = new int[numBuckets];
+		for (int b = 0; b < numBuckets; b++) {
+			if (m_bucketStart[b + 1] > m_bucketStart[b]) {
+				active[numActive++] = b;
+			}
+		}
+		m_active = Arrays.copyOf(active, numActive);
+	}
+
+	public int size() {
+		return m_order.length;
+	}
+
+	/**
+	 * Writes count distinct indices, or all indices if there are fewer, to the start of samples.
+	 * @return The number of indices written
+	 */
+	public int sample(Random random, int count, int[] samples) {
+		count = Math.min(count, m_order.length);
+		int numActive = m_active.length;
+		for (int i = 0; i < count; i++) {
+			int slot = random.nextInt(numActive);
+			int b = m_active[slot];
+			// Partial Fisher-Yates inside the bucket
+			int start = m_bucketStart[b] + m_used[b];
+			int j = start + random.nextInt(m_bucketStart[b + 1] - start);
+			int index = m_order[j];
+			m_order[j] = m_order[start];
+			m_order[start] = index;
+			samples[i] = index;
+			if (++m_used[b] == m_bucketStart[b + 1] - m_bucketStart[b]) {
+				numActive--;
+				m_active[slot] = m_active[numActive];
+				m_active[numActive] = b;
+			}
+		}
+		// Only the buckets of the samples have been touched
+		for (int i = 0; i < count; i++) {
+			m_used[m_bucketOf[samples[i]]] = 0;
+		}
+		return count;
+	}
+
+	/**
+	 * @return The bucket of every vertex, numbered densely from 0
+	 */
+	private static int[] bucketsOf(PgElementSet mesh, int strategy) {
+		PdVector[] vertices = mesh.getVertices();
+		int[] buckets = new int[vertices.length];
+		if (strategy == STRATIFIED) {
+			double[] xyz = IcpPyramid.toArray(vertices);
+			double cellSize = IcpPyramid.diagonal(xyz) / CELLS_PER_AXIS;
+			if (cellSize == 0) {
+				return buckets;
+			}
+			LongIntHashMap cells = new LongIntHashMap(vertices.length / 4);
+			for (int i = 0; i < vertices.length; i++) {
+				long key = LongIntHashMap.cellKey((long) Math.floor(xyz[i * 3] / cellSize),
+						(long) Math.floor(xyz[i * 3 + 1] / cellSize), (long) Math.floor(xyz[i * 3 + 2] / cellSize));
+				buckets[i] = numberCell(cells, key);
+			}
+		} else if (strategy == NORMAL_SPACE) {
+			if (!mesh.hasVertexNormals()) {
+				mesh.makeVertexNormals();
+			}
+			PdVector[] normals = mesh.getVertexNormals();
+			LongIntHashMap bins = new LongIntHashMap(6 * BINS_PER_FACE * BINS_PER_FACE);
+			for (int i = 0; i < vertices.length; i++) {
+				buckets[i] = numberCell(bins, normalBin(normals[i].m_data));
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * @return The number of the cell, a new number if the cell is not in the map yet
+	 */
+	private static int numberCell(LongIntHashMap cells, long key) {
+		int number = cells.get(key);
+		if (number == LongIntHashMap.MISSING) {
+			number = cells.size();
+			cells.put(key, number);
+		}
+		return number;
+	}
+
+	/**
+	 * Bins a direction on the faces of the unit cube: the face of its largest coordinate,
+	 * split into BINS_PER_FACE x BINS_PER_FACE squares. Zero normals all end up in one bin.
+	 */
+	private static long normalBin(double[] n) {
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (Math.abs(n[a]) > Math.abs(n[axis])) {
+				axis = a;
+			}
+		}
+		double length = Math.abs(n[axis]);
+		if (length == 0) {
+			return -1;
+		}
+		int face = axis * 2 + (n[axis] < 0 ? 1 : 0);
+		// The other two coordinates lie in [-1, 1] after the projection onto the face
+		int u = bin(n[(axis + 1) % 3] / length);
+		int v = bin(n[(axis + 2) % 3] / length);
+		return (face * BINS_PER_FACE + u) * BINS_PER_FACE + v;
+	}
+
+	private static int bin(double coordinate) {
+		return Math.min(BINS_PER_FACE - 1, (int) ((coordinate + 1) / 2 * BINS_PER_FACE));
+	}
+}
@@ -0,0 +1,226 @@
+package workshop;
+
+import jv.vecmath.PdVector;
+
+/**
+ * Static k-d tree over a set of 3d points, used for nearest neighbour queries.
+ * The tree is stored implicitly: every range [lo, hi) of the slot arrays is a node,
+ * its median slot is the splitting point and the two halves are the children.
+ * The tree keeps its own copy of the coordinates, so it has to be rebuilt when the points move.
+ */
+public class KdTree implements PointLocator {
+
+	/** Ranges of at most this size are scanned linearly. */
+	private static final int LEAF_SIZE = 8;
+
+	/** Coordinates in tree order, xyz interleaved */
+	private final double[] m_coords;
+	/** Index of the original point for every slot */
+	private final int[] m_index;
+	/** Splitting axis of the node whose median is the slot */
+	private final byte[] m_axis;
+	/** Query state per thread, so queries do not allocate */
+	private static final ThreadLocal<Query> QUERY = ThreadLocal.withInitial(Query::new);
+
+	/**
+	 * Builds the tree, O(n log n).
+	 * @param points The points to index, the indices of this array are returned by the queries
+	 */
+	public KdTree(PdVector[] points) {
+		int n = points.length;
+		m_coords = new double[n * 3];
+		m_index = new int[n];
+		m_axis = new byte[n];
+		for (int i = 0; i < n; i++) {
+			double[] p = points[i].m_data;
+			m_coords[i * 3] = p[0];
+			m_coords[i * 3 + 1] = p[1];
+			m_coords[i * 3 + 2] = p[2];
+			m_index[i] = i;
+		}
+		build(0, n);
+	}
+
+	/**
+	 * Builds the tree, O(n log n).
+	 * @param xyz The points to index, xyz interleaved, point i is returned as index i by the queries
+	 */
+	public KdTree(double[] xyz) {
+		int n = xyz.length / 3;
+		m_coords = xyz.clone();
+		m_index = new int[n];
+		m_axis = new byte[n];
+		for (int i = 0; i < n; i++) {
+			m_index[i] = i;
+		}
+		build(0, n);
+	}
+
+	/**
+	 * @return The number of points in the tree
+	 */
+	public int size() {
+		return m_index.length;
+	}
+
+	/**
+	 * @return The index of the point closest to the given vertex
+	 */
+	public int nearest(PdVector vertex) {
+		double[] p = vertex.m_data;
+		return nearest(p[0], p[1], p[2]);
+	}
+
+	/**
+	 * Finds the point closest to (x, y, z). Safe to call from multiple threads.
+	 * @return The index of the closest point, -1 if the tree is empty
+	 */
+	public int nearest(double x, double y, double z) {
+		if (m_index.length == 0) {
+			return -1;
+		}
+		Query query = QUERY.get();
+		query.reset(x, y, z);
+		search(0, m_index.length, query);
+		return m_index[query.bestSlot];
+	}
+
+	private void build(int lo, int hi) {
+		if (hi - lo <= LEAF_SIZE) {
+			return;
+		}
+		int axis = widestAxis(lo, hi);
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, axis);
+		m_axis[mid] = (byte) axis;
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	/**
+	 * @return The axis along which the points in [lo, hi) have the largest extent
+	 */
+	private int widestAxis(int lo, int hi) {
+		double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (int i = lo; i < hi; i++) {
+			for (int a = 0; a < 3; a++) {
+				double c = m_coords[i * 3 + a];
+				if (c < min[a]) min[a] = c;
+				if (c > max[a]) max[a] = c;
+			}
+		}
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (max[a] - min[a] > max[axis] - min[axis]) {
+				axis = a;
+			}
+		}
+		return axis;
+	}
+
+	/**
+	 * Quickselect: moves the k-th smallest point along the axis to slot k,
+	 * with smaller points before and larger points after it.
+	 */
+	private void select(int left, int right, int k, int axis) {
+		while (right > left) {
+			// Median of three as pivot, so sorted input does not degrade to O(n^2)
+			int mid = (left + right) >>> 1;
+			if (coord(mid, axis) < coord(left, axis)) swap(mid, left);
+			if (coord(right, axis) < coord(left, axis)) swap(right, left);
+			if (coord(right, axis) < coord(mid, axis)) swap(right, mid);
+			double pivot = coord(mid, axis);
+
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (coord(i, axis) < pivot) i++;
+				while (coord(j, axis) > pivot) j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private double coord(int slot, int axis) {
+		return m_coords[slot * 3 + axis];
+	}
+
+	private void swap(int a, int b) {
+		for (int c = 0; c < 3; c++) {
+			double tmp = m_coords[a * 3 + c];
+			m_coords[a * 3 + c] = m_coords[b * 3 + c];
+			m_coords[b * 3 + c] = tmp;
+		}
+		int tmp = m_index[a];
+		m_index[a] = m_index[b];
+		m_index[b] = tmp;
+	}
+
+	private void search(int lo, int hi, Query query) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int i = lo; i < hi; i++) {
+				query.offer(i, m_coords);
+			}
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		query.offer(mid, m_coords);
+
+		int axis = m_axis[mid];
+		double diff = query.coord(axis) - m_coords[mid * 3 + axis];
+		// Descend into the side of the query point first, the other side only if the splitting plane is closer than the best match
+		if (diff < 0) {
+			search(lo, mid, query);
+			if (diff * diff < query.bestDistSq) {
+				search(mid + 1, hi, query);
+			}
+		} else {
+			search(mid + 1, hi, query);
+			if (diff * diff < query.bestDistSq) {
+				search(lo, mid, query);
+			}
+		}
+	}
+
+	/** State of a single nearest neighbour query */
+	private static final class Query {
+		double x, y, z;
+		int bestSlot;
+		double bestDistSq;
+
+		void reset(double x, double y, double z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			bestSlot = -1;
+			bestDistSq = Double.MAX_VALUE;
+		}
+
+		double coord(int axis) {
+			return axis == 0 ? x : (axis == 1 ? y : z);
+		}
+
+		void offer(int slot, double[] coords) {
+			double dx = coords[slot * 3] - x;
+			double dy = coords[slot * 3 + 1] - y;
+			double dz = coords[slot * 3 + 2] - z;
+			double distSq = dx * dx + dy * dy + dz * dz;
+			if (distSq < bestDistSq) {
+				bestDistSq = distSq;
+				bestSlot = slot;
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package workshop;
+
+/**
+ * Open addressing hash map from long keys to int values, without boxing.
+ * Used for sparse voxel grids, where the key is the packed cell coordinate.
+ */
+public class LongIntHashMap {
+
+	/** Returned by get for keys that are not in the map */
+	public static final int MISSING = -1;
+	/** cellKey packs cell coordinates in [-CELL_RANGE, CELL_RANGE) without wrapping around */
+	public static final long CELL_RANGE = 1L << 20;
+
+	private long[] m_keys;
+	private int[] m_values;
+	private boolean[] m_used;
+	private int m_size;
+
+	public LongIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		m_keys = new long[capacity];
+		m_values = new int[capacity];
+		m_used = new boolean[capacity];
+	}
+
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * @return The value of the key, MISSING if it is not in the map
+	 */
+	public int get(long key) {
+		int mask = m_keys.length - 1;
+		for (int slot = hash(key) & mask; m_used[slot]; slot = (slot + 1) & mask) {
+			if (m_keys[slot] == key) {
+				return m_values[slot];
+			}
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Sets the value of the key, replacing an existing value.
+	 */
+	public void put(long key, int value) {
+		if ((m_size + 1) * 2 > m_keys.length) {
+			grow();
+		}
+		int mask = m_keys.length - 1;
+		int slot = hash(key) & mask;
+		while (m_used[slot]) {
+			if (m_keys[slot] == key) {
+				m_values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		m_used[slot] = true;
+		m_keys[slot] = key;
+		m_values[slot] = value;
+		m_size++;
+	}
+
+	private void grow() {
+		long[] keys = m_keys;
+		int[] values = m_values;
+		boolean[] used = m_used;
+		m_keys = new long[keys.length * 2];
+		m_values = new int[keys.length * 2];
+		m_used = new boolean[keys.length * 2];
+		m_size = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				put(keys[i], values[i]);
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		// Mixing step of MurmurHash3, spreads neighbouring cells over the table
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Packs integer cell coordinates into a key, 21 bits per axis.
+	 * Coordinates outside [-CELL_RANGE, CELL_RANGE) wrap around and share keys with other cells.
+	 */
+	public static long cellKey(long x, long y, long z) {
+		return ((x & 0x1FFFFF) << 42) | ((y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+	}
+}
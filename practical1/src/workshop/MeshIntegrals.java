@@ -0,0 +1,141 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+import jv.vecmath.PiVector;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Volume, surface area, centroid and inertia tensor of the solid bounded by a mesh, after Eberly,
+ * "Polyhedral Mass Properties". Every triangle of the elements, polygons split into fans, contributes the integrals of
+ * 1, x, y, z, x^2, y^2, z^2, xy, yz and zx over the signed tetrahedron it spans with a vertex of the mesh;
+ * integrating relative to a point near the mesh rather than the origin keeps the cancellation small.
+ * The elements are summed in fixed blocks, in parallel, and the blocks are added pairwise in a fixed order,
+ * so the result does not depend on the number of threads and the rounding error grows with the log of the number of blocks.
+ * The volume is positive if the elements are oriented outwards; the solid quantities are only meaningful for a
+ * closed, consistently oriented mesh, the area for any mesh. Unit density is assumed.
+ */
+public class MeshIntegrals {
+
+	/** Number of elements summed serially into one block */
+	private static final int BLOCK = 1024;
+	/** The ten integrals and the area */
+	private static final int NUM_SUMS = 11;
+
+	public final double m_volume;
+	public final double m_area;
+	/** Centroid of the solid, the origin if the volume is zero */
+	public final double[] m_centroid = new double[3];
+	/** Inertia tensor about the centroid, row major */
+	public final double[] m_inertia = new double[9];
+
+	/**
+	 * @param pool The pool to sum the blocks on, may be null
+	 */
+	public MeshIntegrals(PgElementSet geometry, ForkJoinPool pool) {
+		PdVector[] vertices = geometry.getVertices();
+		PiVector[] elements = geometry.getElements();
+		int numElements = (elements == null) ? 0 : elements.length;
+		int numBlocks = (numElements + BLOCK - 1) / BLOCK;
+		double[] blocks = new double[Math.max(1, numBlocks) * NUM_SUMS];
+		double[] reference = (vertices.length > 0) ? vertices[0].m_data.clone() : new double[3];
+
+		ParallelRange.forEach(pool, numBlocks, 1, (lo, hi) -> {
+			for (int block = lo; block < hi; block++) {
+				int end = Math.min(numElements, (block + 1) * BLOCK);
+				for (int f = block * BLOCK; f < end; f++) {
+					int[] v = elements[f].getEntries();
+					for (int j = 1; j + 1 < elements[f].getSize(); j++) {
+						addTriangle(vertices[v[0]].m_data, vertices[v[j]].m_data, vertices[v[j + 1]].m_data, reference, blocks, block * NUM_SUMS);
+					}
+				}
+			}
+		});
+		double[] sums = new double[NUM_SUMS];
+		for (int i = 0; i < NUM_SUMS; i++) {
+			sums[i] = pairwiseSum(blocks, i, 0, numBlocks);
+		}
+
+		double volume = sums[0] / 6;
+		// Relative to the reference point until the end
+		double[] c = new double[3];
+		if (volume != 0) {
+			c[0] = sums[1] / 24 / volume;
+			c[1] = sums[2] / 24 / volume;
+			c[2] = sums[3] / 24 / volume;
+		}
+		double xx = sums[4] / 60, yy = sums[5] / 60, zz = sums[6] / 60;
+		double xy = sums[7] / 120, yz = sums[8] / 120, zx = sums[9] / 120;
+		double[] inertia = m_inertia;
+		inertia[0] = yy + zz - volume * (c[1] * c[1] + c[2] * c[2]);
+		inertia[4] = zz + xx - volume * (c[2] * c[2] + c[0] * c[0]);
+		inertia[8] = xx + yy - volume * (c[0] * c[0] + c[1] * c[1]);
+		inertia[1] = inertia[3] = -(xy - volume * c[0] * c[1]);
+		inertia[5] = inertia[7] = -(yz - volume * c[1] * c[2]);
+		inertia[2] = inertia[6] = -(zx - volume * c[2] * c[0]);
+		for (int a = 0; a < 3; a++) {
+			m_centroid[a] = (volume != 0) ? reference[a] + c[a] : 0;
+		}
+		m_volume = volume;
+		m_area = sums[10];
+	}
+
+	/**
+	 * Adds the unscaled integrals of the tetrahedron (r, a, b, c), in coordinates relative to r,
+	 * and the area of the triangle to sums at offset.
+	 */
+	private static void addTriangle(double[] a, double[] b, double[] c, double[] r, double[] sums, int offset) {
+		double x0 = a[0] - r[0], y0 = a[1] - r[1], z0 = a[2] - r[2];
+		double x1 = b[0] - r[0], y1 = b[1] - r[1], z1 = b[2] - r[2];
+		double x2 = c[0] - r[0], y2 = c[1] - r[1], z2 = c[2] - r[2];
+		// Normal (b - a) x (c - a), twice the area
+		double ax = x1 - x0, ay = y1 - y0, az = z1 - z0;
+		double bx = x2 - x0, by = y2 - y0, bz = z2 - z0;
+		double d0 = ay * bz - az * by, d1 = az * bx - ax * bz, d2 = ax * by - ay * bx;
+
+		// Subexpressions per axis: f1 = sum, f2 = sum of degree 2, f3 = sum of degree 3, g for the products
+		double t0 = x0 + x1, t1 = x0 * x0, t2 = t1 + x1 * t0;
+		double f1x = t0 + x2, f2x = t2 + x2 * f1x, f3x = x0 * t1 + x1 * t2 + x2 * f2x;
+		double g0x = f2x + x0 * (f1x + x0), g1x = f2x + x1 * (f1x + x1), g2x = f2x + x2 * (f1x + x2);
+		t0 = y0 + y1; t1 = y0 * y0; t2 = t1 + y1 * t0;
+		double f1y = t0 + y2, f2y = t2 + y2 * f1y, f3y = y0 * t1 + y1 * t2 + y2 * f2y;
+		double g0y = f2y + y0 * (f1y + y0), g1y = f2y + y1 * (f1y + y1), g2y = f2y + y2 * (f1y + y2);
+		t0 = z0 + z1; t1 = z0 * z0; t2 = t1 + z1 * t0;
+		double f1z = t0 + z2, f2z = t2 + z2 * f1z, f3z = z0 * t1 + z1 * t2 + z2 * f2z;
+		double g0z = f2z + z0 * (f1z + z0), g1z = f2z + z1 * (f1z + z1), g2z = f2z + z2 * (f1z + z2);
+
+		sums[offset] += d0 * f1x;
+		sums[offset + 1] += d0 * f2x;
+		sums[offset + 2] += d1 * f2y;
+		sums[offset + 3] += d2 * f2z;
+		sums[offset + 4] += d0 * f3x;
+		sums[offset + 5] += d1 * f3y;
+		sums[offset + 6] += d2 * f3z;
+		sums[offset + 7] += d0 * (y0 * g0x + y1 * g1x + y2 * g2x);
+		sums[offset + 8] += d1 * (z0 * g0y + z1 * g1y + z2 * g2y);
+		sums[offset + 9] += d2 * (x0 * g0z + x1 * g1z + x2 * g2z);
+		sums[offset + 10] += 0.5 * Math.sqrt(d0 * d0 + d1 * d1 + d2 * d2);
+	}
+
+	/**
+	 * @return The sum of entry i of the blocks [lo, hi), added pairwise
+	 */
+	private static double pairwiseSum(double[] blocks, int i, int lo, int hi) {
+		if (hi - lo <= 2) {
+			double sum = 0;
+			for (int block = lo; block < hi; block++) {
+				sum += blocks[block * NUM_SUMS + i];
+			}
+			return sum;
+		}
+		int mid = (lo + hi) >>> 1;
+		return pairwiseSum(blocks, i, lo, mid) + pairwiseSum(blocks, i, mid, hi);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("volume %.6g, area %.6g, centroid (%.4g, %.4g, %.4g)",
+				m_volume, m_area, m_centroid[0], m_centroid[1], m_centroid[2]);
+	}
+}
@@ -0,0 +1,59 @@
+package workshop;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits an index range [0, n) into chunks that are processed on a ForkJoinPool.
+ * Every index is handled exactly once, so bodies that only write to their own indices give
+ * the same result as the serial loop.
+ */
+public class ParallelRange {
+
+	/** Work on the sub range [lo, hi). */
+	public interface Body {
+		void apply(int lo, int hi);
+	}
+
+	private ParallelRange() {
+	}
+
+	/**
+	 * Runs body over [0, n). When pool is null or the range is not larger than grain it runs on the calling thread.
+	 * @param pool The pool to run on, may be null
+	 * @param n The size of the range
+	 * @param grain The largest range that is not split any further
+	 * @param body The work
+	 */
+	public static void forEach(ForkJoinPool pool, int n, int grain, Body body) {
+		if (pool == null || n <= grain) {
+			body.apply(0, n);
+			return;
+		}
+		pool.invoke(new RangeTask(0, n, Math.max(1, grain), body));
+	}
+
+	private static final class RangeTask extends RecursiveAction {
+		private final int m_lo;
+		private final int m_hi;
+		private final int m_grain;
+		private final Body m_body;
+
+		RangeTask(int lo, int hi, int grain, Body body) {
+			m_lo = lo;
+			m_hi = hi;
+			m_grain = grain;
+			m_body = body;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_hi - m_lo <= m_grain) {
+				m_body.apply(m_lo, m_hi);
+				return;
+			}
+			int mid = (m_lo + m_hi) >>> 1;
+			invokeAll(new RangeTask(m_lo, mid, m_grain, m_body), new RangeTask(mid, m_hi, m_grain, m_body));
+		}
+	}
+}
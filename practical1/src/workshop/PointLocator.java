@@ -0,0 +1,13 @@
+package workshop;
+
+/**
+ * Closest point queries over a fixed set of points, used by the ICP loops.
+ */
+public interface PointLocator {
+
+	/**
+	 * Finds the point closest to (x, y, z). Safe to call from multiple threads.
+	 * @return The index of the closest point, -1 if there are no points
+	 */
+	int nearest(double x, double y, double z);
+}
@@ -0,0 +1,91 @@
+package workshop;
+
+/**
+ * Centroid and principal axes of a point set, the eigenvectors of its covariance matrix.
+ * Used for a global alignment of P and Q before ICP.
+ */
+public class PrincipalAxes {
+
+	final double[] m_centroid = new double[3];
+	/** The axes as columns, row major, ordered by decreasing variance and forming a right-handed frame */
+	final double[] m_axes = new double[9];
+	/** The variance along every axis */
+	final double[] m_variances = new double[3];
+
+	/**
+	 * @param xyz The points, xyz interleaved
+	 */
+	public PrincipalAxes(double[] xyz) {
+		int n = xyz.length / 3;
+		for (int i = 0; i < n; i++) {
+			for (int a = 0; a < 3; a++) {
+				m_centroid[a] += xyz[i * 3 + a];
+			}
+		}
+		for (int a = 0; a < 3; a++) {
+			m_centroid[a] /= Math.max(1, n);
+		}
+		double[] covariance = new double[9];
+		for (int i = 0; i < n; i++) {
+			double x = xyz[i * 3] - m_centroid[0];
+			double y = xyz[i * 3 + 1] - m_centroid[1];
+			double z = xyz[i * 3 + 2] - m_centroid[2];
+			covariance[0] += x * x; covariance[1] += x * y; covariance[2] += x * z;
+			covariance[4] += y * y; covariance[5] += y * z;
+			covariance[8] += z * z;
+		}
+		covariance[3] = covariance[1];
+		covariance[6] = covariance[2];
+		covariance[7] = covariance[5];
+
+		double[] eigenvectors = new double[9];
+		IcpKernel.jacobiEigen(covariance, eigenvectors, 3);
+		// Selection sort of the three columns by eigenvalue
+		int[] order = {0, 1, 2};
+		for (int i = 0; i < 2; i++) {
+			for (int j = i + 1; j < 3; j++) {
+				if (covariance[order[j] * 4] > covariance[order[i] * 4]) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+				}
+			}
+		}
+		for (int c = 0; c < 3; c++) {
+			m_variances[c] = covariance[order[c] * 4] / Math.max(1, n);
+			for (int r = 0; r < 3; r++) {
+				m_axes[r * 3 + c] = eigenvectors[r * 3 + order[c]];
+			}
+		}
+		// Third axis = first x second, so the frame is a rotation
+		double[] e = m_axes;
+		e[2] = e[3] * e[7] - e[6] * e[4];
+		e[5] = e[6] * e[1] - e[0] * e[7];
+		e[8] = e[0] * e[4] - e[3] * e[1];
+	}
+
+	/**
+	 * Sets the motion that maps this frame onto the other one, with the first two axes flipped as given.
+	 * There are four such motions, flipX and flipY select one of them.
+	 */
+	public void getAlignment(PrincipalAxes target, boolean flipX, boolean flipY, RigidMotion motion) {
+		double[] sign = {flipX ? -1 : 1, flipY ? -1 : 1, (flipX != flipY) ? -1 : 1};
+		double[] rotation = new double[9];
+		// R = E_target S E_this^T
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				double sum = 0;
+				for (int k = 0; k < 3; k++) {
+					sum += target.m_axes[i * 3 + k] * sign[k] * m_axes[j * 3 + k];
+				}
+				rotation[i * 3 + j] = sum;
+			}
+		}
+		double[] c = m_centroid;
+		motion.setIdentity();
+		motion.preMultiply(rotation,
+				target.m_centroid[0] - (rotation[0] * c[0] + rotation[1] * c[1] + rotation[2] * c[2]),
+				target.m_centroid[1] - (rotation[3] * c[0] + rotation[4] * c[1] + rotation[5] * c[2]),
+				target.m_centroid[2] - (rotation[6] * c[0] + rotation[7] * c[1] + rotation[8] * c[2]));
+	}
+}
@@ -0,0 +1,235 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdMatrix;
+import jv.vecmath.PdVector;
+
+import java.util.Random;
+
+/**
+ * A rigid motion x -> R x + t, kept as a 3x3 rotation and a translation.
+ * Used to accumulate the ICP steps without touching the vertices of the mesh.
+ */
+public class RigidMotion {
+
+	/** Rotation, row major */
+	final double[] m_rotation = new double[9];
+	final double[] m_translation = new double[3];
+	/** Scratch for preMultiply */
+	private final double[] m_scratch = new double[9];
+
+	/** Creates the identity. */
+	public RigidMotion() {
+		setIdentity();
+	}
+
+	public void setIdentity() {
+		for (int i = 0; i < 9; i++) {
+			m_rotation[i] = (i % 4 == 0) ? 1 : 0;
+		}
+		m_translation[0] = m_translation[1] = m_translation[2] = 0;
+	}
+
+	public boolean isIdentity() {
+		for (int i = 0; i < 9; i++) {
+			if (m_rotation[i] != ((i % 4 == 0) ? 1 : 0)) {
+				return false;
+			}
+		}
+		return m_translation[0] == 0 && m_translation[1] == 0 && m_translation[2] == 0;
+	}
+
+	public void set(RigidMotion other) {
+		System.arraycopy(other.m_rotation, 0, m_rotation, 0, 9);
+		System.arraycopy(other.m_translation, 0, m_translation, 0, 3);
+	}
+
+	/**
+	 * Sets this motion to the inverse of the other one. The 3x3 part is inverted in general,
+	 * so the result stays exact for matrices that are only nearly orthogonal.
+	 */
+	public void setInverse(RigidMotion other) {
+		double[] r = other.m_rotation;
+		double[] inv = m_scratch;
+		inv[0] = r[4] * r[8] - r[5] * r[7]; inv[1] = r[2] * r[7] - r[1] * r[8]; inv[2] = r[1] * r[5] - r[2] * r[4];
+		inv[3] = r[5] * r[6] - r[3] * r[8]; inv[4] = r[0] * r[8] - r[2] * r[6]; inv[5] = r[2] * r[3] - r[0] * r[5];
+		inv[6] = r[3] * r[7] - r[4] * r[6]; inv[7] = r[1] * r[6] - r[0] * r[7]; inv[8] = r[0] * r[4] - r[1] * r[3];
+		double det = r[0] * inv[0] + r[1] * inv[3] + r[2] * inv[6];
+		double x = other.m_translation[0], y = other.m_translation[1], z = other.m_translation[2];
+		for (int i = 0; i < 9; i++) {
+			m_rotation[i] = inv[i] / det;
+		}
+		m_translation[0] = -(m_rotation[0] * x + m_rotation[1] * y + m_rotation[2] * z);
+		m_translation[1] = -(m_rotation[3] * x + m_rotation[4] * y + m_rotation[5] * z);
+		m_translation[2] = -(m_rotation[6] * x + m_rotation[7] * y + m_rotation[8] * z);
+	}
+
+	/**
+	 * Sets a random motion: a rotation around a uniformly distributed axis by an angle of up to maxAngle
+	 * around the point from, which is then moved to the point to plus a random offset of up to maxTranslation per axis.
+	 */
+	public void setRandomStart(Random random, double[] from, double[] to, double maxAngle, double maxTranslation) {
+		// Uniform axis on the sphere
+		double z = 2 * random.nextDouble() - 1;
+		double phi = 2 * Math.PI * random.nextDouble();
+		double r = Math.sqrt(1 - z * z);
+		double x = r * Math.cos(phi);
+		double y = r * Math.sin(phi);
+		double angle = maxAngle * random.nextDouble();
+
+		// Rodrigues' formula
+		double c = Math.cos(angle), s = Math.sin(angle), C = 1 - c;
+		m_rotation[0] = c + x * x * C;     m_rotation[1] = x * y * C - z * s; m_rotation[2] = x * z * C + y * s;
+		m_rotation[3] = y * x * C + z * s; m_rotation[4] = c + y * y * C;     m_rotation[5] = y * z * C - x * s;
+		m_rotation[6] = z * x * C - y * s; m_rotation[7] = z * y * C + x * s; m_rotation[8] = c + z * z * C;
+
+		for (int i = 0; i < 3; i++) {
+			double offset = maxTranslation * (2 * random.nextDouble() - 1);
+			m_translation[i] = to[i] + offset
+					- (m_rotation[i * 3] * from[0] + m_rotation[i * 3 + 1] * from[1] + m_rotation[i * 3 + 2] * from[2]);
+		}
+	}
+
+	/**
+	 * Writes the motion as 7 parameters: the unit quaternion (w, x, y, z) of the rotation with w >= 0,
+	 * followed by the translation.
+	 */
+	public void getParameters(double[] parameters) {
+		double[] r = m_rotation;
+		double trace = r[0] + r[4] + r[8];
+		double w, x, y, z;
+		// Shepperd's method: divide by the largest of the four candidates
+		if (trace > 0) {
+			double s = 2 * Math.sqrt(trace + 1);
+			w = s / 4;
+			x = (r[7] - r[5]) / s;
+			y = (r[2] - r[6]) / s;
+			z = (r[3] - r[1]) / s;
+		} else if (r[0] > r[4] && r[0] > r[8]) {
+			double s = 2 * Math.sqrt(1 + r[0] - r[4] - r[8]);
+			w = (r[7] - r[5]) / s;
+			x = s / 4;
+			y = (r[1] + r[3]) / s;
+			z = (r[2] + r[6]) / s;
+		} else if (r[4] > r[8]) {
+			double s = 2 * Math.sqrt(1 + r[4] - r[0] - r[8]);
+			w = (r[2] - r[6]) / s;
+			x = (r[1] + r[3]) / s;
+			y = s / 4;
+			z = (r[5] + r[7]) / s;
+		} else {
+			double s = 2 * Math.sqrt(1 + r[8] - r[0] - r[4]);
+			w = (r[3] - r[1]) / s;
+			x = (r[2] + r[6]) / s;
+			y = (r[5] + r[7]) / s;
+			z = s / 4;
+		}
+		double sign = (w < 0) ? -1 : 1;
+		parameters[0] = sign * w;
+		parameters[1] = sign * x;
+		parameters[2] = sign * y;
+		parameters[3] = sign * z;
+		System.arraycopy(m_translation, 0, parameters, 4, 3);
+	}
+
+	/**
+	 * Sets the motion from the parameters of getParameters. The quaternion does not need to be normalised.
+	 */
+	public void setParameters(double[] parameters) {
+		double w = parameters[0], x = parameters[1], y = parameters[2], z = parameters[3];
+		double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+		w /= norm; x /= norm; y /= norm; z /= norm;
+		double[] R = m_rotation;
+		R[0] = w * w + x * x - y * y - z * z; R[1] = 2 * (x * y - w * z);           R[2] = 2 * (x * z + w * y);
+		R[3] = 2 * (x * y + w * z);           R[4] = w * w - x * x + y * y - z * z; R[5] = 2 * (y * z - w * x);
+		R[6] = 2 * (x * z - w * y);           R[7] = 2 * (y * z + w * x);           R[8] = w * w - x * x - y * y + z * z;
+		System.arraycopy(parameters, 4, m_translation, 0, 3);
+	}
+
+	/**
+	 * Applies the given rotation and translation after this motion: this = (rotation, translation) * this.
+	 */
+	public void preMultiply(PdMatrix rotation, PdVector translation) {
+		double[] r = new double[9];
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				r[i * 3 + j] = rotation.getEntry(i, j);
+			}
+		}
+		preMultiply(r, translation.getEntry(0), translation.getEntry(1), translation.getEntry(2));
+	}
+
+	/**
+	 * Applies the given rotation (row major) and translation after this motion.
+	 */
+	public void preMultiply(double[] rotation, double tx, double ty, double tz) {
+		double[] r = m_scratch;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				r[i * 3 + j] = rotation[i * 3] * m_rotation[j] + rotation[i * 3 + 1] * m_rotation[3 + j] + rotation[i * 3 + 2] * m_rotation[6 + j];
+			}
+		}
+		double x = m_translation[0], y = m_translation[1], z = m_translation[2];
+		m_translation[0] = rotation[0] * x + rotation[1] * y + rotation[2] * z + tx;
+		m_translation[1] = rotation[3] * x + rotation[4] * y + rotation[5] * z + ty;
+		m_translation[2] = rotation[6] * x + rotation[7] * y + rotation[8] * z + tz;
+		System.arraycopy(r, 0, m_rotation, 0, 9);
+	}
+
+	/**
+	 * dst = R src + t, dst may be src.
+	 */
+	public void apply(PdVector src, PdVector dst) {
+		double x = src.getEntry(0), y = src.getEntry(1), z = src.getEntry(2);
+		dst.setEntry(0, m_rotation[0] * x + m_rotation[1] * y + m_rotation[2] * z + m_translation[0]);
+		dst.setEntry(1, m_rotation[3] * x + m_rotation[4] * y + m_rotation[5] * z + m_translation[1]);
+		dst.setEntry(2, m_rotation[6] * x + m_rotation[7] * y + m_rotation[8] * z + m_translation[2]);
+	}
+
+	/**
+	 * Transforms the point at srcOffset of src into dst at dstOffset, both xyz interleaved.
+	 */
+	public void apply(double[] src, int srcOffset, double[] dst, int dstOffset) {
+		double x = src[srcOffset], y = src[srcOffset + 1], z = src[srcOffset + 2];
+		dst[dstOffset] = m_rotation[0] * x + m_rotation[1] * y + m_rotation[2] * z + m_translation[0];
+		dst[dstOffset + 1] = m_rotation[3] * x + m_rotation[4] * y + m_rotation[5] * z + m_translation[1];
+		dst[dstOffset + 2] = m_rotation[6] * x + m_rotation[7] * y + m_rotation[8] * z + m_translation[2];
+	}
+
+	/**
+	 * @return The transformed vertices as new vectors, the given vertices are untouched
+	 */
+	public PdVector[] applyNew(PdVector[] vertices) {
+		PdVector[] transformed = new PdVector[vertices.length];
+		for (int i = 0; i < vertices.length; i++) {
+			transformed[i] = new PdVector(3);
+			apply(vertices[i], transformed[i]);
+		}
+		return transformed;
+	}
+
+	/**
+	 * Transforms all vertices of the mesh in place. The caller has to update the mesh.
+	 */
+	public void applyToMesh(PgElementSet mesh) {
+		PdVector[] vertices = mesh.getVertices();
+		for (int i = 0; i < vertices.length; i++) {
+			apply(vertices[i], vertices[i]);
+		}
+	}
+
+	/**
+	 * @return The motion as homogeneous 4x4 matrix
+	 */
+	public PdMatrix getMatrix() {
+		PdMatrix matrix = new PdMatrix(4);
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				matrix.setEntry(i, j, m_rotation[i * 3 + j]);
+			}
+			matrix.setEntry(i, 3, m_translation[i]);
+		}
+		matrix.setEntry(3, 3, 1);
+		return matrix;
+	}
+}
@@ -9,8 +9,9 @@ import jvx.project.PjWorkshop;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *  Workshop for surface registration
@@ -30,6 +31,56 @@ public class RigidTransformation extends PjWorkshop {
      * This can be used to reset Q.
      */
     PdVector[] m_surfQ_original;
+    /** Cached spatial index over Q for the closest vertex and closest point on surface queries. */
+    TargetIndex m_indexQ;
+    /** If true the correspondences are looked up in a distance field of Q within its band. */
+    boolean m_distanceField = false;
+    /** Cell size and band width of the distance field */
+    double m_fieldResolution;
+    double m_fieldBandWidth;
+    /** If true the closest vertices are found by walking over Q from the matches of the previous steps. */
+    boolean m_track = false;
+    /** Matches of the previous steps for m_track, built on first use. */
+    CorrespondenceTracker m_tracker;
+    /** The rigid motion of Q since setGeometries, undone by reset. */
+    final RigidMotion m_motionQ = new RigidMotion();
+    /** If true the closest vertices are found by scanning all of Q, used as reference for the k-d tree. */
+    boolean m_bruteForce = false;
+    /** If true samples are matched to the closest point on the surface of Q instead of the closest vertex. */
+    boolean m_closestPointOnSurface = false;
+    /** If true register minimises the point-to-plane error instead of the point-to-point error. */
+    boolean m_pointToPlane = false;
+    /** If true register keeps the steps in m_motion and only moves the sampled points instead of all of P. */
+    boolean m_accumulate = false;
+    /** With an accumulated transform P is moved every this many steps, 0 moves it only once at the end. */
+    int m_displayInterval = 0;
+    /** The steps of register that have not been applied to P yet. */
+    final RigidMotion m_motion = new RigidMotion();
+    /** If true register extrapolates m_motion over the steps, which implies an accumulated transform. */
+    boolean m_extrapolate = false;
+    /** History of the steps for the extrapolation */
+    final IcpExtrapolator m_extrapolator = new IcpExtrapolator();
+    /** If true register runs on the primitive buffers of m_kernel, point-to-point only. */
+    boolean m_useKernel = false;
+    /** Robust weight function of IcpKernel used instead of the median cut, 0 for the median cut */
+    int m_robustWeights = 0;
+    /** Reusable buffers for the primitive registration */
+    final IcpKernel m_kernel = new IcpKernel();
+    /** How getRandomVertices draws its samples, one of the strategies of IcpSampler. */
+    int m_sampling = IcpSampler.UNIFORM;
+    /** Sampler over the vertices of P for m_sampling, built on first use. */
+    IcpSampler m_sampler;
+    /** Indices of the last samples of getRandomVertices */
+    int[] m_sampleIndices = new int[0];
+    /** Source of the random samples and of the random translations of Q */
+    Random m_random = new Random();
+    /** Median distance and number of kept samples of the last step of register. */
+    double m_lastMedian;
+    int m_lastSampleSize;
+    /** Pool for the parallel correspondence search, null when running on the calling thread. */
+    ForkJoinPool m_pool;
+    /** Number of samples handled by a single task of the parallel correspondence search. */
+    private static final int GRAIN = 32;
 
 	/** Constructor */
 	public RigidTransformation() {
@@ -51,6 +102,10 @@ public class RigidTransformation extends PjWorkshop {
         m_surfP_original = PdVector.copyNew(surfP.getVertices());
 		m_surfQ = surfQ;
         m_surfQ_original = PdVector.copyNew(surfQ.getVertices());
+        m_sampler = null;
+        m_tracker = null;
+        m_indexQ = TargetIndex.get(surfQ);
+        m_motionQ.setIdentity();
         System.out.println(String.format("Vertices P:%d vertices Q: %d", surfP.getVertices().length, surfQ.getVertices().length));
 	}
 
@@ -64,48 +119,749 @@ public class RigidTransformation extends PjWorkshop {
 
         m_surfQ.setVertices(m_surfQ_original.clone());
         m_surfQ.update(m_surfQ);
+        // The original vertices are the current ones moved back by the inverse of the motion so far
+        RigidMotion back = new RigidMotion();
+        back.setInverse(m_motionQ);
+        updateQ(back);
+        m_motionQ.setIdentity();
+        forgetCorrespondences();
     }
 
     /**
+     * Updates the spatial index and the normals of Q after its vertices have been moved rigidly.
+     * The index only takes over the motion, it is rebuilt only if the vertices do not match it afterwards.
+     */
+    private void updateQ(RigidMotion motion) {
+        m_motionQ.preMultiply(motion.m_rotation, motion.m_translation[0], motion.m_translation[1], motion.m_translation[2]);
+        m_indexQ.move(motion);
+        m_indexQ = TargetIndex.get(m_surfQ);
+        forgetCorrespondences();
+        if(m_surfQ.hasVertexNormals()) {
+            m_surfQ.makeVertexNormals();
+        }
+        if(m_surfQ.hasElementNormals()) {
+            m_surfQ.makeElementNormals();
+        }
+    }
+
+    /**
+     * @param bruteForce If true the closest vertices are found by a linear scan over Q instead of the k-d tree
+     */
+    public void setBruteForce(boolean bruteForce) {
+        m_bruteForce = bruteForce;
+    }
+
+    /**
+     * @param closestPointOnSurface If true samples are matched to the closest point on the surface of Q instead of its closest vertex
+     */
+    public void setClosestPointOnSurface(boolean closestPointOnSurface) {
+        m_closestPointOnSurface = closestPointOnSurface;
+    }
+
+    /**
+     * @param distanceField If true closest vertices or surface points are looked up in a sparse distance field around Q,
+     *                      which is built before the first registration and kept with the index of Q. The answer is the
+     *                      one for the centre of the cell of a sample, outside the band the exact search is used.
+     * @param resolution The cell size of the field
+     * @param bandWidth Distance from Q up to which the field is stored
+     */
+    public void setDistanceField(boolean distanceField, double resolution, double bandWidth) {
+        m_distanceField = distanceField;
+        m_fieldResolution = resolution;
+        m_fieldBandWidth = bandWidth;
+    }
+
+    /**
+     * @param track If true the closest vertex of a sample is found by a greedy walk over the edges of Q from its match
+     *              in the previous steps, see CorrespondenceTracker, and only searched globally when the walk stalls.
+     *              Late steps then cost a few distances per sample. The matches are forgotten whenever P or Q is moved
+     *              by anything else than a step. Closest points on the surface are always searched globally.
+     */
+    public void setTrackCorrespondences(boolean track) {
+        m_track = track;
+    }
+
+    /**
+     * @param pointToPlane If true register minimises the point-to-plane error, otherwise the point-to-point error
+     */
+    public void setPointToPlane(boolean pointToPlane) {
+        m_pointToPlane = pointToPlane;
+    }
+
+    /**
+     * @param accumulate If true register keeps a running rigid transform and only transforms the sampled points.
+     *                   P itself is moved at the end, so a step costs O(samples) instead of O(|P|).
+     * @param displayInterval P is also moved every this many steps to show the progress, 0 to move it only at the end
+     */
+    public void setAccumulateTransform(boolean accumulate, int displayInterval) {
+        m_accumulate = accumulate;
+        m_displayInterval = displayInterval;
+    }
+
+    /**
+     * @param extrapolate If true register jumps ahead along the path of the accumulated transform whenever
+     *                    the last steps point in the same direction, see IcpExtrapolator. A jump that increases
+     *                    the error is undone. This also accumulates the transform as with setAccumulateTransform.
+     */
+    public void setExtrapolate(boolean extrapolate) {
+        m_extrapolate = extrapolate;
+    }
+
+    /**
+     * @param function IcpKernel.HUBER, TUKEY or CAUCHY to weight the pairs by their distance instead of cutting
+     *                 at k times the median, 0 for the median cut. The weighted fit runs on the primitive buffers,
+     *                 so a point-to-point register uses them as with setUseKernel; point-to-plane ignores the weights.
+     */
+    public void setRobustWeights(int function) {
+        m_robustWeights = function;
+    }
+
+    /**
+     * @param useKernel If true register works on reusable xyz buffers and fits the rotation with Horn's quaternion method.
+     *                  A step then creates no garbage per sample. This path always accumulates the transform
+     *                  and ignores setPointToPlane.
+     */
+    public void setUseKernel(boolean useKernel) {
+        m_useKernel = useKernel;
+    }
+
+    /**
+     * @param sampling How the samples of P are drawn: IcpSampler.UNIFORM, STRATIFIED or NORMAL_SPACE
+     */
+    public void setSampling(int sampling) {
+        if(sampling != m_sampling) {
+            m_sampling = sampling;
+            m_sampler = null;
+        }
+    }
+
+    /**
+     * Seeds the sampling and the random translations, so runs can be repeated exactly.
+     */
+    public void setSeed(long seed) {
+        m_random = new Random(seed);
+    }
+
+    /**
+     * Sets the number of threads used by getClosestVertices and getAllDistances.
+     * @param parallelism The number of threads, 1 or less runs everything on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 1) {
+            if (m_pool != null) {
+                m_pool.shutdown();
+                m_pool = null;
+            }
+        } else if (m_pool == null || m_pool.getParallelism() != parallelism) {
+            if (m_pool != null) {
+                m_pool.shutdown();
+            }
+            m_pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    /**
+     * Tries the find the optimal rigid transformation of P onto Q within maximum steps or until the maximum error was achieved.
+     * The error is the point-to-point or, with setPointToPlane, the point-to-plane MSE of the kept samples.
+     * @param nrVertices The sample size
+     * @param k threshold
+     * @param maxSteps The maximum number of steps while converging
+     * @param maxError The maximum error it should achieve
+     * @return A vector, first entry gives the number of steps it took, second entry the minimal error.
+     */
+    public PdVector register(int nrVertices, double k, int maxSteps, double maxError) {
+        if(m_useKernel || (m_robustWeights != 0 && !m_pointToPlane)) {
+            return registerKernel(nrVertices, k, maxSteps, maxError);
+        }
+        prepareDistanceField();
+        prepareTracker();
+        double error;
+        double lowestError = Double.MAX_VALUE;
+        int steps = 0;
+        m_motion.setIdentity();
+        m_extrapolator.reset();
+        boolean accumulate = m_accumulate || m_extrapolate;
+
+        for(; steps < maxSteps; steps++) {
+            PdVector[] randomVertices = getRandomVertices(nrVertices);
+            if(accumulate) {
+                // P has not been moved yet, only bring the samples to their current position
+                randomVertices = m_motion.applyNew(randomVertices);
+            }
+
+            int[] closestIndices;
+            PdVector[] closestVertices;
+            if(m_closestPointOnSurface) {
+                // Indices of the elements that contain the closest points
+                closestIndices = new int[randomVertices.length];
+                closestVertices = getClosestSurfacePoints(randomVertices, closestIndices);
+            } else {
+                closestIndices = getClosestVertexIndices(randomVertices, m_sampleIndices);
+                closestVertices = getVerticesQ(closestIndices);
+            }
+
+            double[] distances = getAllDistances(randomVertices, closestVertices);
+            double median = getMedian(distances);
+            boolean[] listToRemove = getRemoveList(distances, median, k);
+            PdVector[] pointsP = removeVertices(randomVertices, listToRemove);
+            PdVector[] pointsQ = removeVertices(closestVertices, listToRemove);
+            m_lastMedian = median;
+            m_lastSampleSize = pointsP.length;
+
+            PdVector[] normalsQ = null;
+            if(m_pointToPlane) {
+                PdVector[] closestNormals = m_closestPointOnSurface ? getElementNormalsQ(closestIndices) : getNormalsQ(closestIndices);
+                normalsQ = removeVertices(closestNormals, listToRemove);
+                error = calculatePlaneError(pointsP, pointsQ, normalsQ);
+            } else {
+                error = calculateError(pointsP, pointsQ);
+            }
+            lowestError = (error < lowestError) ? error : lowestError;
+
+            if(error < maxError) {
+                break;
+            }
+            if(m_extrapolate && m_extrapolator.rollback(m_motion, error)) {
+                continue;
+            }
+
+            PdMatrix optimalRotation;
+            PdVector optimalTranslation;
+            if(m_pointToPlane) {
+                PdVector parameters = computePointToPlaneParameters(pointsP, pointsQ, normalsQ);
+                optimalRotation = computeEulerRotation(parameters.getEntry(0), parameters.getEntry(1), parameters.getEntry(2));
+                optimalTranslation = new PdVector(parameters.getEntry(3), parameters.getEntry(4), parameters.getEntry(5));
+            } else {
+                PdMatrix M = computeM(pointsP, pointsQ);
+                SingularValueDecomposition svd = new SingularValueDecomposition(new Matrix(M.getEntries()));
+                optimalRotation = computeOptimalRotation(svd);
+                optimalTranslation = computeOptimalTranslation(pointsP, pointsQ, optimalRotation);
+            }
+
+            if(accumulate) {
+                m_motion.preMultiply(optimalRotation, optimalTranslation);
+                if(m_extrapolate) {
+                    m_extrapolator.update(m_motion, error, calculateResidual(pointsP, pointsQ, normalsQ, optimalRotation, optimalTranslation));
+                }
+                if(m_displayInterval > 0 && (steps + 1) % m_displayInterval == 0) {
+                    applyMotion();
+                    m_extrapolator.reset();
+                }
+            } else {
+                rotateMesh(optimalRotation, m_surfP);
+                translateMesh(optimalTranslation, m_surfP);
+                m_surfP.update(m_surfP);
+            }
+        }
+        applyMotion();
+        return new PdVector(steps, lowestError);
+    }
+
+    /**
+     * Point-to-point registration on the primitive buffers of m_kernel, see setUseKernel.
+     */
+    private PdVector registerKernel(int nrVertices, double k, int maxSteps, double maxError) {
+        prepareDistanceField();
+        prepareTracker();
+        double error;
+        double lowestError = Double.MAX_VALUE;
+        int steps = 0;
+        m_motion.setIdentity();
+        m_extrapolator.reset();
+        IcpKernel kernel = m_kernel;
+
+        for(; steps < maxSteps; steps++) {
+            PdVector[] randomVertices = getRandomVertices(nrVertices);
+            kernel.setSize(randomVertices.length);
+            for(int i = 0; i < randomVertices.length; i++) {
+                m_motion.apply(randomVertices[i].m_data, 0, kernel.m_p, i * 3);
+            }
+            findCorrespondences(kernel);
+
+            m_lastSampleSize = (m_robustWeights != 0) ? kernel.weigh(m_robustWeights) : kernel.reject(k);
+            m_lastMedian = kernel.m_median;
+            error = kernel.fit();
+            lowestError = (error < lowestError) ? error : lowestError;
+
+            if(error < maxError) {
+                break;
+            }
+            if(m_extrapolate && m_extrapolator.rollback(m_motion, error)) {
+                continue;
+            }
+
+            double[] t = kernel.m_translation;
+            m_motion.preMultiply(kernel.m_rotation, t[0], t[1], t[2]);
+            if(m_extrapolate) {
+                m_extrapolator.update(m_motion, error, kernel.residual());
+            }
+            if(m_displayInterval > 0 && (steps + 1) % m_displayInterval == 0) {
+                applyMotion();
+                m_extrapolator.reset();
+            }
+        }
+        applyMotion();
+        return new PdVector(steps, lowestError);
+    }
+
+    /**
+     * Builds the distance field of Q for the current settings if it is enabled and not built yet.
+     */
+    private void prepareDistanceField() {
+        if(m_distanceField) {
+            m_indexQ.buildDistanceField(m_closestPointOnSurface, m_fieldResolution, m_fieldBandWidth, m_pool);
+        }
+    }
+
+    /**
+     * Makes the tracker of the matches for the current geometries if tracking is enabled, keeping the matches if it exists.
+     */
+    private void prepareTracker() {
+        if(!m_track) {
+            m_tracker = null;
+            return;
+        }
+        VertexAdjacency adjacencyP = VertexAdjacency.get(m_surfP);
+        VertexAdjacency adjacencyQ = VertexAdjacency.get(m_surfQ);
+        if(m_tracker == null || !m_tracker.matches(adjacencyP, adjacencyQ)) {
+            m_tracker = new CorrespondenceTracker(adjacencyP, adjacencyQ);
+        }
+    }
+
+    /**
+     * Drops the tracked matches after P or Q has been moved by more than a step.
+     */
+    private void forgetCorrespondences() {
+        if(m_tracker != null) {
+            m_tracker.forget();
+        }
+    }
+
+    /**
+     * Fills the Q buffer of the kernel with the closest vertex or surface point of every sample in its P buffer.
+     */
+    private void findCorrespondences(IcpKernel kernel) {
+        TargetIndex indexQ = m_indexQ;
+        CorrespondenceTracker tracker = m_tracker;
+        int[] samples = m_sampleIndices;
+        PdVector[] verticesQ = m_surfQ.getVertices();
+        double[] p = kernel.m_p;
+        double[] q = kernel.m_q;
+        ParallelRange.forEach(m_pool, kernel.m_size, GRAIN, (lo, hi) -> {
+            for(int i = lo; i < hi; i++) {
+                if(m_closestPointOnSurface) {
+                    if(m_distanceField) {
+                        indexQ.lookupClosestPoint(p, i * 3, q, i * 3);
+                    } else {
+                        indexQ.closestPoint(p, i * 3, q, i * 3);
+                    }
+                } else {
+                    int index = closestVertexQ(tracker, samples[i], p[i * 3], p[i * 3 + 1], p[i * 3 + 2], verticesQ);
+                    System.arraycopy(verticesQ[index].m_data, 0, q, i * 3, 3);
+                }
+            }
+        });
+    }
+
+    /**
+     * Global pre-alignment: moves P so that its centroid and principal axes coincide with those of Q.
+     * The axes only fix the frame up to the signs, so the four proper rotations are tried on a sample of P
+     * and the one with the smallest point-to-point error to the closest vertices of Q is kept.
+     * Being independent of the current pose, this gives ICP a start close to the optimum even after
+     * large rotations of Q, unless the shapes have no distinct principal axes.
+     * @param nrVertices The sample size used to choose between the four candidates
+     * @return The MSE of the sample after the alignment
+     */
+    public double alignPrincipalAxes(int nrVertices) {
+        applyMotion();
+        PrincipalAxes axesP = new PrincipalAxes(IcpPyramid.toArray(m_surfP.getVertices()));
+        PrincipalAxes axesQ = new PrincipalAxes(IcpPyramid.toArray(m_surfQ.getVertices()));
+        PdVector[] samples = getRandomVertices(nrVertices);
+
+        RigidMotion candidate = new RigidMotion();
+        double[] moved = new double[3];
+        double bestError = Double.MAX_VALUE;
+        PdVector[] verticesQ = m_surfQ.getVertices();
+        for(int flips = 0; flips < 4; flips++) {
+            axesP.getAlignment(axesQ, (flips & 1) != 0, (flips & 2) != 0, candidate);
+            double error = 0;
+            for(PdVector sample : samples) {
+                candidate.apply(sample.m_data, 0, moved, 0);
+                int index = m_indexQ.nearest(moved[0], moved[1], moved[2]);
+                double[] q = verticesQ[index].m_data;
+                error += (moved[0] - q[0]) * (moved[0] - q[0]) + (moved[1] - q[1]) * (moved[1] - q[1])
+                        + (moved[2] - q[2]) * (moved[2] - q[2]);
+            }
+            error /= Math.max(1, samples.length);
+            if(error < bestError) {
+                bestError = error;
+                m_motion.set(candidate);
+            }
+        }
+        applyMotion();
+        forgetCorrespondences();
+        return bestError;
+    }
+
+    /**
+     * Coarse-to-fine registration. P is first aligned on voxel-decimated copies of P and Q, every level starting
+     * from the result of the previous one, and finally on the full resolution with register and the current settings.
+     * A decimated level also ends when a step moves the points by less than a thousandth of its cell size,
+     * since the decimation limits the error it can reach.
+     * All parameter arrays have one entry per level, the last entry is used for the full resolution.
+     * @param nrVertices The sample size per level
+     * @param k threshold per level
+     * @param maxSteps The maximum number of steps per level
+     * @param maxError The error to achieve per level
+     * @return A vector, first entry gives the total number of steps, second entry the minimal error on the full resolution.
+     */
+    public PdVector registerMultiresolution(int[] nrVertices, double[] k, int[] maxSteps, double[] maxError) {
+        int levels = nrVertices.length;
+        IcpPyramid pyramid = new IcpPyramid(m_surfP, m_surfQ, levels - 1);
+        int totalSteps = 0;
+        m_motion.setIdentity();
+        for(int level = 0; level < pyramid.getNumLevels(); level++) {
+            PdVector result = iterateLevel(m_kernel, m_motion, m_pool, pyramid.m_p[level], pyramid.m_q[level], pyramid.m_treeQ[level],
+                    m_random, nrVertices[level], k[level], maxSteps[level], maxError[level], pyramid.m_cellSize[level] * 1e-3);
+            totalSteps += (int)result.getEntry(0);
+        }
+        // The coarse levels only moved copies, bring P to the seed of the full resolution
+        applyMotion();
+        forgetCorrespondences();
+
+        int last = levels - 1;
+        PdVector result = register(nrVertices[last], k[last], maxSteps[last], maxError[last]);
+        return new PdVector(totalSteps + result.getEntry(0), result.getEntry(1));
+    }
+
+    /**
+     * Best-of-N registration. Runs point-to-point ICP from the current pose and from trials - 1 random starting
+     * poses, concurrently on the pool, and moves P by the trial whose final pose scores best.
+     * Every final pose is scored the same way: the MSE of one fixed sample of P to the nearest vertices of Q,
+     * without cutting outliers, so the trials are compared on the same points and not on their own inliers.
+     * A random start rotates P around its centroid by up to maxAngle, moves the centroid onto the centroid of Q
+     * and adds a random translation of up to maxTranslation per axis. The vertices of P and Q are copied once and
+     * shared read-only by all trials, every worker has its own buffers and motion.
+     * A trial also ends when a step moves no sample by more than a thousandth of sqrt(maxError).
+     * @param trials The number of starts
+     * @param nrVertices The sample size
+     * @param k threshold
+     * @param maxSteps The maximum number of steps per trial
+     * @param maxError The maximum error a trial should achieve
+     * @param maxAngle The largest rotation of a random start, in radians
+     * @param maxTranslation The largest translation of a random start per axis
+     * @return A vector, first entry gives the number of steps of the best trial, second entry its score.
+     */
+    public PdVector registerMultiStart(int trials, int nrVertices, double k, int maxSteps, double maxError,
+                                       double maxAngle, double maxTranslation) {
+        applyMotion();
+        double[] pointsP = IcpPyramid.toArray(m_surfP.getVertices());
+        double[] pointsQ = IcpPyramid.toArray(m_surfQ.getVertices());
+        PointLocator treeQ = m_indexQ;
+        double[] centroidP = centroid(pointsP);
+        double[] centroidQ = centroid(pointsQ);
+        double minMotion = Math.sqrt(maxError) * 1e-3;
+
+        // Seeds are drawn up front, so the result does not depend on the order the workers run in
+        long[] seeds = new long[trials];
+        for(int i = 0; i < trials; i++) {
+            seeds[i] = m_random.nextLong();
+        }
+        int numP = pointsP.length / 3;
+        int[] scoreSamples = new int[Math.min(nrVertices, numP)];
+        new IcpSampler(numP).sample(m_random, scoreSamples.length, scoreSamples);
+        RigidMotion[] motions = new RigidMotion[trials];
+        double[][] results = new double[trials][];
+        ParallelRange.forEach(m_pool, trials, 1, (lo, hi) -> {
+            IcpKernel kernel = new IcpKernel();
+            for(int trial = lo; trial < hi; trial++) {
+                Random random = new Random(seeds[trial]);
+                RigidMotion motion = new RigidMotion();
+                if(trial > 0) {
+                    motion.setRandomStart(random, centroidP, centroidQ, maxAngle, maxTranslation);
+                }
+                PdVector result = iterateLevel(kernel, motion, null, pointsP, pointsQ, treeQ, random,
+                        nrVertices, k, maxSteps, maxError, minMotion);
+                motions[trial] = motion;
+                results[trial] = new double[]{result.getEntry(0), score(motion, pointsP, pointsQ, treeQ, scoreSamples)};
+            }
+        });
+
+        int best = 0;
+        for(int trial = 1; trial < trials; trial++) {
+            if(results[trial][1] < results[best][1]) {
+                best = trial;
+            }
+        }
+        m_motion.set(motions[best]);
+        applyMotion();
+        forgetCorrespondences();
+        return new PdVector(results[best][0], results[best][1]);
+    }
+
+    /**
+     * @return The MSE of the given samples of P, moved by the motion, to their nearest vertices of Q, without a cut
+     */
+    private static double score(RigidMotion motion, double[] pointsP, double[] pointsQ, PointLocator treeQ, int[] samples) {
+        double[] p = new double[3];
+        double error = 0;
+        for(int sample : samples) {
+            motion.apply(pointsP, sample * 3, p, 0);
+            int index = treeQ.nearest(p[0], p[1], p[2]);
+            double dx = p[0] - pointsQ[index * 3], dy = p[1] - pointsQ[index * 3 + 1], dz = p[2] - pointsQ[index * 3 + 2];
+            error += dx * dx + dy * dy + dz * dz;
+        }
+        return (samples.length == 0) ? Double.MAX_VALUE : error / samples.length;
+    }
+
+    /**
+     * @return The centroid of the points, xyz interleaved
+     */
+    private static double[] centroid(double[] xyz) {
+        double[] centroid = new double[3];
+        int n = xyz.length / 3;
+        for(int i = 0; i < n; i++) {
+            centroid[0] += xyz[i * 3];
+            centroid[1] += xyz[i * 3 + 1];
+            centroid[2] += xyz[i * 3 + 2];
+        }
+        for(int a = 0; a < 3; a++) {
+            centroid[a] /= Math.max(1, n);
+        }
+        return centroid;
+    }
+
+    /**
+     * Point-to-point ICP of a point set onto another, accumulating into the given motion.
+     * Only reads the shared arrays and the tree, so several calls with their own kernel and motion can run concurrently.
+     * @param kernel The buffers to work in
+     * @param motion The motion of P, applied to the samples and updated by every step
+     * @param pool The pool for the correspondence search, may be null
+     * @param pointsP The points of P, xyz interleaved, not modified
+     * @param pointsQ The points of Q, xyz interleaved
+     * @param treeQ Index over pointsQ, in the same frame
+     * @param minMotion The iteration ends when a step moves no sample by more than this distance
+     * @return A vector, first entry gives the number of steps it took, second entry the minimal error.
+     */
+    private static PdVector iterateLevel(IcpKernel kernel, RigidMotion motion, ForkJoinPool pool,
+                                         double[] pointsP, double[] pointsQ, PointLocator treeQ, Random random,
+                                         int nrVertices, double k, int maxSteps, double maxError, double minMotion) {
+        int numP = pointsP.length / 3;
+        int sampleSize = Math.min(nrVertices, numP);
+        IcpSampler sampler = new IcpSampler(numP);
+        int[] samples = new int[sampleSize];
+        kernel.setSize(sampleSize);
+
+        double error;
+        double lowestError = Double.MAX_VALUE;
+        int steps = 0;
+        for(; steps < maxSteps; steps++) {
+            sampler.sample(random, sampleSize, samples);
+            for(int i = 0; i < sampleSize; i++) {
+                motion.apply(pointsP, samples[i] * 3, kernel.m_p, i * 3);
+            }
+            double[] p = kernel.m_p;
+            double[] q = kernel.m_q;
+            ParallelRange.forEach(pool, sampleSize, GRAIN, (lo, hi) -> {
+                for(int i = lo; i < hi; i++) {
+                    int index = treeQ.nearest(p[i * 3], p[i * 3 + 1], p[i * 3 + 2]);
+                    System.arraycopy(pointsQ, index * 3, q, i * 3, 3);
+                }
+            });
+
+            kernel.reject(k);
+            error = kernel.fit();
+            lowestError = (error < lowestError) ? error : lowestError;
+            if(error < maxError) {
+                break;
+            }
+            double[] t = kernel.m_translation;
+            motion.preMultiply(kernel.m_rotation, t[0], t[1], t[2]);
+            if(kernel.maxDisplacement() < minMotion) {
+                steps++;
+                break;
+            }
+        }
+        return new PdVector(steps, lowestError);
+    }
+
+    /**
+     * Moves P by the steps accumulated in m_motion and resets it.
+     */
+    private void applyMotion() {
+        if(m_motion.isIdentity()) {
+            return;
+        }
+        m_motion.applyToMesh(m_surfP);
+        m_surfP.update(m_surfP);
+        m_motion.setIdentity();
+    }
+
+    /**
+     * Draws the samples with the strategy of setSampling in O(nrVertices), without copying the vertices of P.
      * @param nrVertices The number of vertices to select
      * @return Selects a sublist of the vertices in p randomized.
      */
 	public PdVector[] getRandomVertices(int nrVertices) {
 		PdVector[] allVertices = m_surfP.getVertices();
 		if (allVertices.length < nrVertices) {
+            if (m_sampleIndices.length < allVertices.length) {
+                m_sampleIndices = new int[allVertices.length];
+            }
+            for (int i = 0; i < allVertices.length; i++) {
+                m_sampleIndices[i] = i;
+            }
 		    return allVertices;
         }
-        // Due references, we have to clone first
-        List<PdVector> listVertices = Arrays.asList(allVertices.clone());
-        // Use the java8 shuffle
-        Collections.shuffle(listVertices);
-        // Get the sublist
-        return listVertices.subList(0, nrVertices).toArray(new PdVector[nrVertices]);
+        if (m_sampler == null || m_sampler.size() != allVertices.length) {
+            m_sampler = new IcpSampler(m_surfP, m_sampling);
+        }
+        if (m_sampleIndices.length < nrVertices) {
+            m_sampleIndices = new int[nrVertices];
+        }
+        m_sampler.sample(m_random, nrVertices, m_sampleIndices);
+        PdVector[] samples = new PdVector[nrVertices];
+        for (int i = 0; i < nrVertices; i++) {
+            samples[i] = allVertices[m_sampleIndices[i]];
+        }
+        return samples;
 	}
 
     /**
      * For every entry in the given vertices finds the closest vertex in set Q for it.
      */
     public PdVector[] getClosestVertices(PdVector[] vertices) {
-        PdVector[] closestVertices = new PdVector[vertices.length];
-        for(int i = 0; i < vertices.length; i++) {
-            closestVertices[i] = findClosestVertices(vertices[i]);
+        return getVerticesQ(getClosestVertexIndices(vertices));
+    }
+
+    /**
+     * For every entry in the given vertices finds the index of the closest vertex in set Q for it.
+     */
+    public int[] getClosestVertexIndices(PdVector[] vertices) {
+        return getClosestVertexIndices(vertices, null);
+    }
+
+    /**
+     * @param samples The indices in P of the vertices, for the tracked matches, null to search without them
+     */
+    private int[] getClosestVertexIndices(PdVector[] vertices, int[] samples) {
+        int[] closestIndices = new int[vertices.length];
+        CorrespondenceTracker tracker = (samples != null) ? m_tracker : null;
+        PdVector[] verticesQ = m_surfQ.getVertices();
+        // Every sample is independent, so the search can be split over the pool
+        ParallelRange.forEach(m_pool, vertices.length, GRAIN, (lo, hi) -> {
+            for(int i = lo; i < hi; i++) {
+                double[] p = vertices[i].m_data;
+                closestIndices[i] = closestVertexQ(tracker, (samples != null) ? samples[i] : -1, p[0], p[1], p[2], verticesQ);
+            }
+        });
+        return closestIndices;
+    }
+
+    /**
+     * Finds the closest vertex of Q by the walk of the tracker if there is one, otherwise by the search of the current settings.
+     * @param sample The index in P of the point, for the tracker
+     */
+    private int closestVertexQ(CorrespondenceTracker tracker, int sample, double x, double y, double z, PdVector[] verticesQ) {
+        if(tracker != null) {
+            int index = tracker.track(sample, x, y, z, verticesQ);
+            if(index >= 0) {
+                return index;
+            }
+        }
+        int index;
+        if(m_bruteForce) {
+            index = findClosestVertex(x, y, z);
+        } else if(m_distanceField) {
+            index = m_indexQ.lookupNearest(x, y, z);
+        } else {
+            index = m_indexQ.nearest(x, y, z);
+        }
+        if(tracker != null) {
+            tracker.remember(sample, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param indices Indices into the vertices of Q
+     * @return The vertices of Q at the given indices
+     */
+    public PdVector[] getVerticesQ(int[] indices) {
+        PdVector[] verticesQ = m_surfQ.getVertices();
+        PdVector[] vertices = new PdVector[indices.length];
+        for(int i = 0; i < indices.length; i++) {
+            vertices[i] = verticesQ[indices[i]];
+        }
+        return vertices;
+    }
+
+    /**
+     * @param indices Indices into the vertices of Q
+     * @return The vertex normals of Q at the given indices
+     */
+    public PdVector[] getNormalsQ(int[] indices) {
+        if(!m_surfQ.hasVertexNormals()) {
+            m_surfQ.makeVertexNormals();
+        }
+        PdVector[] normalsQ = m_surfQ.getVertexNormals();
+        PdVector[] normals = new PdVector[indices.length];
+        for(int i = 0; i < indices.length; i++) {
+            normals[i] = normalsQ[indices[i]];
         }
-        return closestVertices;
+        return normals;
     }
 
     /**
-     * Finds the closest vertex in the set Q from the given vertex.
+     * For every entry in the given vertices finds the closest point on the surface of Q.
+     * @param vertices The query points
+     * @param elements Receives for every query point the index of the element of Q that contains its closest point
+     * @return The closest points, new vectors
      */
-    private PdVector findClosestVertices(PdVector vertex) {
-        // Note: this the most expensive function O(n^2)
+    public PdVector[] getClosestSurfacePoints(PdVector[] vertices, int[] elements) {
+        TargetIndex indexQ = m_indexQ;
+        PdVector[] closestPoints = new PdVector[vertices.length];
+        ParallelRange.forEach(m_pool, vertices.length, GRAIN, (lo, hi) -> {
+            for(int i = lo; i < hi; i++) {
+                closestPoints[i] = new PdVector(3);
+                if(m_distanceField) {
+                    elements[i] = indexQ.lookupClosestPoint(vertices[i].m_data, 0, closestPoints[i].m_data, 0);
+                } else {
+                    elements[i] = indexQ.closestPoint(vertices[i], closestPoints[i]);
+                }
+            }
+        });
+        return closestPoints;
+    }
+
+    /**
+     * @param elements Indices into the elements of Q
+     * @return The element normals of Q at the given indices
+     */
+    public PdVector[] getElementNormalsQ(int[] elements) {
+        if(!m_surfQ.hasElementNormals()) {
+            m_surfQ.makeElementNormals();
+        }
+        PdVector[] normals = new PdVector[elements.length];
+        for(int i = 0; i < elements.length; i++) {
+            normals[i] = m_surfQ.getElementNormal(elements[i]);
+        }
+        return normals;
+    }
+
+    /**
+     * Finds the index of the closest vertex in the set Q from (x, y, z) by scanning all of Q, O(n).
+     */
+    private int findClosestVertex(double x, double y, double z) {
         PdVector[] vertices = m_surfQ.getVertices();
-        PdVector current = vertices[0];
-        double smallest = vertex.dist(current);
-        for(int i = 1; i < vertices.length -1; i++) {
-            double dist = vertex.dist(vertices[i]);
+        int current = 0;
+        double smallest = Double.MAX_VALUE;
+        for(int i = 0; i < vertices.length; i++) {
+            double[] v = vertices[i].m_data;
+            double dx = v[0] - x, dy = v[1] - y, dz = v[2] - z;
+            double dist = dx * dx + dy * dy + dz * dz;
             if(dist < smallest) {
-                current = vertices[i];
+                current = i;
                 smallest = dist;
             }
         }
@@ -134,9 +890,11 @@ public class RigidTransformation extends PjWorkshop {
      */
     public double[] getAllDistances(PdVector[] left, PdVector[] right) {
         double[] distances = new double[left.length];
-        for(int i = 0; i < left.length; i++) {
-            distances[i] = left[i].dist(right[i]);
-        }
+        ParallelRange.forEach(m_pool, left.length, GRAIN, (lo, hi) -> {
+            for(int i = lo; i < hi; i++) {
+                distances[i] = left[i].dist(right[i]);
+            }
+        });
         return distances;
     }
 
@@ -242,6 +1000,18 @@ public class RigidTransformation extends PjWorkshop {
         }
     }
 
+    /**
+     * The error of the pairs after a step: the point-to-plane MSE if normals are given, the point-to-point MSE otherwise.
+     * @param rotation The rotation of the step
+     * @param translation The translation of the step
+     */
+    private double calculateResidual(PdVector[] pointsP, PdVector[] pointsQ, PdVector[] normalsQ, PdMatrix rotation, PdVector translation) {
+        RigidMotion step = new RigidMotion();
+        step.preMultiply(rotation, translation);
+        PdVector[] moved = step.applyNew(pointsP);
+        return (normalsQ == null) ? calculateError(moved, pointsQ) : calculatePlaneError(moved, pointsQ, normalsQ);
+    }
+
     /**
      * Calculates the MSE of the distances between left and right vertices set.
      * @param left
@@ -257,6 +1027,79 @@ public class RigidTransformation extends PjWorkshop {
         return error / (double)left.length;
     }
 
+    /**
+     * Calculates the mean squared point-to-plane distance, the distance of every left vertex
+     * to the tangent plane of its right vertex.
+     * @param left
+     * @param right
+     * @param normalsRight The unit normals of the right vertices
+     * @return the MSE
+     */
+    public double calculatePlaneError(PdVector[] left, PdVector[] right, PdVector[] normalsRight) {
+        double error = 0;
+        for(int i = 0; i < left.length; i++) {
+            double distance = PdVector.subNew(left[i], right[i]).dot(normalsRight[i]);
+            error += (distance * distance);
+        }
+        return error / (double)left.length;
+    }
+
+    /**
+     * Computes the rigid motion that minimises the point-to-plane error, linearised for small rotations.
+     * Every pair gives a row a = (p x n, n) and right hand side b = (q - p) . n, which are solved in the
+     * least squares sense from the 6x6 normal equations.
+     * @param pointsP
+     * @param pointsQ
+     * @param normalsQ The unit normals of pointsQ
+     * @return A vector (alpha, beta, gamma, tx, ty, tz) with the rotation angles around x, y, z and the translation
+     */
+    public PdVector computePointToPlaneParameters(PdVector[] pointsP, PdVector[] pointsQ, PdVector[] normalsQ) {
+        double[][] ata = new double[6][6];
+        double[][] atb = new double[6][1];
+        double[] a = new double[6];
+        for(int i = 0; i < pointsP.length; i++) {
+            double[] p = pointsP[i].m_data;
+            double[] n = normalsQ[i].m_data;
+            a[0] = p[1] * n[2] - p[2] * n[1];
+            a[1] = p[2] * n[0] - p[0] * n[2];
+            a[2] = p[0] * n[1] - p[1] * n[0];
+            a[3] = n[0];
+            a[4] = n[1];
+            a[5] = n[2];
+            double b = PdVector.subNew(pointsQ[i], pointsP[i]).dot(normalsQ[i]);
+            for(int row = 0; row < 6; row++) {
+                for(int column = 0; column < 6; column++) {
+                    ata[row][column] += a[row] * a[column];
+                }
+                atb[row][0] += a[row] * b;
+            }
+        }
+        // A flat patch leaves some directions unconstrained, a tiny damping keeps the system solvable
+        double trace = 0;
+        for(int i = 0; i < 6; i++) {
+            trace += ata[i][i];
+        }
+        for(int i = 0; i < 6; i++) {
+            ata[i][i] += 1e-12 * trace + Double.MIN_NORMAL;
+        }
+        Matrix x = new Matrix(ata).solve(new Matrix(atb));
+        return new PdVector(x.get(0, 0), x.get(1, 0), x.get(2, 0), x.get(3, 0), x.get(4, 0), x.get(5, 0));
+    }
+
+    /**
+     * @return The rotation Rz(gamma) * Ry(beta) * Rx(alpha)
+     */
+    public PdMatrix computeEulerRotation(double alpha, double beta, double gamma) {
+        double ca = Math.cos(alpha), sa = Math.sin(alpha);
+        double cb = Math.cos(beta), sb = Math.sin(beta);
+        double cg = Math.cos(gamma), sg = Math.sin(gamma);
+        return new PdMatrix(new double[][]{
+                {cg * cb, cg * sb * sa - sg * ca, cg * sb * ca + sg * sa},
+                {sg * cb, sg * sb * sa + cg * ca, sg * sb * ca - cg * sa},
+                {-sb, cb * sa, cb * ca}
+        });
+    }
+
     public void randomRotationQ() {
         // A rotation of 2 degrees around the axis (1, 1, 1)
         // If you click enough it would be random
@@ -266,6 +1109,9 @@ public class RigidTransformation extends PjWorkshop {
                 {0.3618392, -0.2577418, 0.8959026}
         });
         rotateMesh(rotation, this.m_surfQ);
+        RigidMotion motion = new RigidMotion();
+        motion.preMultiply(rotation, new PdVector(3));
+        updateQ(motion);
     }
 
     /**
@@ -273,7 +1119,10 @@ public class RigidTransformation extends PjWorkshop {
      * @param size The boundaries
      */
     public void randomTranslationQ(int size) {
-        PdVector translation = new PdVector(Math.random() * size - size / 2, Math.random() * size - size / 2, Math.random() * size - size / 2);
+        PdVector translation = new PdVector(m_random.nextDouble() * size - size / 2, m_random.nextDouble() * size - size / 2, m_random.nextDouble() * size - size / 2);
         translateMesh(translation, this.m_surfQ);
+        RigidMotion motion = new RigidMotion();
+        motion.preMultiply(motion.m_rotation, translation.getEntry(0), translation.getEntry(1), translation.getEntry(2));
+        updateQ(motion);
     }
 }
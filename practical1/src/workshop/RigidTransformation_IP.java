@@ -1,13 +1,11 @@
 package workshop;
 
-import Jama.SingularValueDecomposition;
 import jv.geom.PgElementSet;
 import jv.object.PsDialog;
 import jv.object.PsUpdateIf;
 import jv.objectGui.PsList;
 import jv.project.PgGeometryIf;
 import jv.project.PvGeometryIf;
-import jv.vecmath.PdMatrix;
 import jv.vecmath.PdVector;
 import jv.viewer.PvDisplay;
 import jvx.project.PjWorkshop_IP;
@@ -15,6 +13,10 @@ import jvx.project.PjWorkshop_IP;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Vector;
 
 /**
@@ -32,10 +34,37 @@ public class RigidTransformation_IP extends PjWorkshop_IP implements ActionListe
     final private int NR_VERTICES = 250;
     final private double MAX_ERROR = 0.020;
     final private int MAX_STEPS = 500;
+    /** With an accumulated transform, P is redrawn every this many steps */
+    final private int DISPLAY_INTERVAL = 50;
+    /** Number of levels of the coarse-to-fine registration, including the full resolution */
+    final private int PYRAMID_LEVELS = 3;
+    /** Number of starts and largest start rotation of the best-of-N registration */
+    final private int MULTI_START_TRIALS = 25;
+    final private double MULTI_START_ANGLE = Math.PI / 2;
+    /** Cells of the distance field along the diagonal of Q, and its band width in cells */
+    final private int FIELD_CELLS = 200;
+    final private int FIELD_BAND_CELLS = 8;
+    /** File the results of Test config are written to */
+    final private String BENCHMARK_FILE = "icp_benchmark.csv";
 
     protected Button btnTestConfig;
+    protected Button btnBatch;
+    protected Button btnDistance;
 	protected Button btnTransform;
     protected Button btnReset;
+    protected Checkbox cbBruteForce;
+    protected Checkbox cbSurface;
+    protected Checkbox cbAccumulate;
+    protected Checkbox cbPyramid;
+    protected Checkbox cbMultiStart;
+    protected Checkbox cbExtrapolate;
+    protected Checkbox cbPreAlign;
+    protected Checkbox cbDistanceField;
+    protected Checkbox cbTrack;
+    protected TextField tfThreads;
+    protected Choice chAlgorithm;
+    protected Choice chSampling;
+    protected Choice chOutliers;
 	protected Button btnRandomRotation;
     protected Button btnRandomTranslation;
 	protected Label lbl;
@@ -93,7 +122,7 @@ public class RigidTransformation_IP extends PjWorkshop_IP implements ActionListe
 		pSetSurfaces.add(m_bSetSurfaces, BorderLayout.CENTER);
 		add(pSetSurfaces);
 
-		Panel panelBottom = new Panel(new GridLayout(12,1));
+		Panel panelBottom = new Panel(new GridLayout(26,1));
         btnTransform = new Button("Transform");
         btnTransform.addActionListener(this);
 		btnRandomRotation = new Button("Random rotation of Q");
@@ -102,8 +131,40 @@ public class RigidTransformation_IP extends PjWorkshop_IP implements ActionListe
         btnRandomTranslation.addActionListener(this);
         btnTestConfig = new Button("Test config");
         btnTestConfig.addActionListener(this);
+        btnBatch = new Button("Register all other surfaces to Q");
+        btnBatch.addActionListener(this);
+        btnDistance = new Button("Distance between P and Q");
+        btnDistance.addActionListener(this);
         btnReset = new Button("Reset");
         btnReset.addActionListener(this);
+        cbBruteForce = new Checkbox("Brute-force closest vertices (reference)");
+        cbSurface = new Checkbox("Match closest point on surface of Q");
+        cbAccumulate = new Checkbox("Accumulate transform, move P only at display rate");
+        cbDistanceField = new Checkbox("Look up correspondences in a distance field of Q");
+        cbTrack = new Checkbox("Track closest vertices by walking over Q");
+        cbPreAlign = new Checkbox("Pre-align principal axes");
+        cbExtrapolate = new Checkbox("Extrapolate transform (Besl-McKay)");
+        cbPyramid = new Checkbox("Coarse-to-fine (" + PYRAMID_LEVELS + " levels)");
+        cbMultiStart = new Checkbox("Best of " + MULTI_START_TRIALS + " random starts (point-to-point)");
+        Panel panelThreads = new Panel(new BorderLayout());
+        panelThreads.add(new Label("Threads"), BorderLayout.WEST);
+        tfThreads = new TextField(String.valueOf(Runtime.getRuntime().availableProcessors()));
+        panelThreads.add(tfThreads, BorderLayout.CENTER);
+        chAlgorithm = new Choice();
+        chAlgorithm.add("Point-to-point (SVD)");
+        chAlgorithm.add("Point-to-plane (linearised)");
+        chAlgorithm.add("Point-to-point (primitive buffers, quaternion)");
+        // Same order as the strategy constants of IcpSampler
+        chSampling = new Choice();
+        chSampling.add("Uniform sampling");
+        chSampling.add("Spatially stratified sampling");
+        chSampling.add("Normal-space sampling");
+        // Index 0 is the median cut, the others the weight functions of IcpKernel
+        chOutliers = new Choice();
+        chOutliers.add("Outliers: cut at k times the median");
+        chOutliers.add("Outliers: Huber weights");
+        chOutliers.add("Outliers: Tukey weights");
+        chOutliers.add("Outliers: Cauchy weights");
         lbl = new Label();
         lblMedian = new Label();
         lblConfig = new Label();
@@ -114,7 +175,22 @@ public class RigidTransformation_IP extends PjWorkshop_IP implements ActionListe
 		panelBottom.add(btnRandomRotation);
         panelBottom.add(btnRandomTranslation);
         panelBottom.add(btnTestConfig);
+        panelBottom.add(btnBatch);
+        panelBottom.add(btnDistance);
         panelBottom.add(btnReset);
+        panelBottom.add(cbBruteForce);
+        panelBottom.add(cbSurface);
+        panelBottom.add(cbAccumulate);
+        panelBottom.add(cbDistanceField);
+        panelBottom.add(cbTrack);
+        panelBottom.add(cbPreAlign);
+        panelBottom.add(cbExtrapolate);
+        panelBottom.add(cbPyramid);
+        panelBottom.add(cbMultiStart);
+        panelBottom.add(panelThreads);
+        panelBottom.add(chAlgorithm);
+        panelBottom.add(chSampling);
+        panelBottom.add(chOutliers);
         panelBottom.add(lbl);
         panelBottom.add(lblConfig);
         panelBottom.add(lblMedian);
@@ -184,6 +260,10 @@ public class RigidTransformation_IP extends PjWorkshop_IP implements ActionListe
             m_registration.m_surfQ.update(m_registration.m_surfQ);
         } else if(source == btnTestConfig) {
             performKTest();
+        } else if(source == btnBatch) {
+            registerAll();
+        } else if(source == btnDistance) {
+            measureDistance();
         } else if(source == btnReset) {
             System.out.println("reset");
             m_registration.reset();
@@ -191,67 +271,157 @@ public class RigidTransformation_IP extends PjWorkshop_IP implements ActionListe
 	}
 
 	private void performKTest() {
-	    int iterations = 25;
-
-        testConfig(NR_VERTICES, 1, MAX_STEPS, MAX_ERROR, iterations);
-        testConfig(NR_VERTICES, 3, MAX_STEPS, MAX_ERROR, iterations);
-        testConfig(NR_VERTICES, 5, MAX_STEPS, MAX_ERROR, iterations);
-    }
-
-    private void performNTest() {
-        int iterations = 25;
-
-        testConfig(100, K, MAX_STEPS, MAX_ERROR, iterations);
-        testConfig(200, K, MAX_STEPS, MAX_ERROR, iterations);
-        testConfig(300, K, MAX_STEPS, MAX_ERROR, iterations);
-    }
+		IcpBenchmark benchmark = createBenchmark();
+		benchmark.setKs(1, 3, 5);
+		runBenchmark(benchmark);
+	}
 
-    private void performStepsTest() {
-		int iterations = 25;
+	private void performNTest() {
+		IcpBenchmark benchmark = createBenchmark();
+		benchmark.setSampleSizes(100, 200, 300);
+		runBenchmark(benchmark);
+	}
 
-		testConfig(100, K, 1000, MAX_ERROR, iterations);
-		testConfig(200, K, 1000, MAX_ERROR, iterations);
-		testConfig(300, K, 1000, MAX_ERROR, iterations);
+	private void performStepsTest() {
+		IcpBenchmark benchmark = createBenchmark();
+		benchmark.setSampleSizes(100, 200, 300);
+		benchmark.setMaxSteps(1000);
+		runBenchmark(benchmark);
 	}
 
 	/**
-	 * Runs the applyRigidTransformation for #iterations.
-	 * Prints out the configuration that was used, the average error, number of times the maxSteps was reached,
-	 * average number of steps.
-	 * @param nrVertices The sample size
-	 * @param k threshold
-	 * @param maxSteps The maximum number of steps while converging
-	 * @param maxError The maximum error it should achieve
-	 * @param iterations The number of experiments to run
+	 * @return A benchmark of the current options with the default configuration and 25 trials
 	 */
-    private void testConfig(int nrVertices, double k, int maxSteps, double maxError, int iterations) {
-        int maxReached = 0;
-        int averageSteps = 0;
-        double averageError = 0;
+	private IcpBenchmark createBenchmark() {
+		applyOptions();
+		IcpBenchmark benchmark = new IcpBenchmark(m_registration);
+		benchmark.setSampleSizes(NR_VERTICES);
+		benchmark.setKs(K);
+		benchmark.setMaxSteps(MAX_STEPS);
+		benchmark.setMaxErrors(MAX_ERROR);
+		benchmark.setTrials(25);
+		return benchmark;
+	}
 
-        for(int i = 0; i < iterations; i++) {
-            PdVector result = applyRigidTransformation(nrVertices, k, maxSteps, maxError);
-            averageSteps += result.getEntry(0);
-            averageError += result.getEntry(1);
-            if(result.getEntry(0) >= maxSteps - 1) maxReached++;
-            m_registration.randomRotationQ();
-            m_registration.randomTranslationQ(10);
-            m_registration.m_surfQ.update(m_registration.m_surfQ);
-            m_registration.reset();
-            System.out.println(i);
-        }
+	/**
+	 * Enables or disables every button that moves P or Q or runs on m_registration.
+	 * Disabled while a worker thread registers or measures, so nothing moves the surfaces under it.
+	 */
+	private void setControlsEnabled(boolean enabled) {
+		m_bSetSurfaces.setEnabled(enabled);
+		btnTransform.setEnabled(enabled);
+		btnRandomRotation.setEnabled(enabled);
+		btnRandomTranslation.setEnabled(enabled);
+		btnTestConfig.setEnabled(enabled);
+		btnBatch.setEnabled(enabled);
+		btnDistance.setEnabled(enabled);
+		btnReset.setEnabled(enabled);
+	}
 
-        averageError /= iterations;
-        averageSteps /= iterations;
+	/**
+	 * Runs the benchmark on a worker thread, so the dialog stays responsive, and writes the results to BENCHMARK_FILE.
+	 * The benchmark moves P and Q of m_registration, so the controls are disabled until it ends.
+	 */
+	private void runBenchmark(IcpBenchmark benchmark) {
+		setControlsEnabled(false);
+		lbl.setText("Benchmark running");
+		Thread thread = new Thread(() -> {
+			String message = "Benchmark failed";
+			try (Writer writer = new FileWriter(BENCHMARK_FILE)) {
+				IcpBenchmark.writeCsv(benchmark.run(), writer);
+				message = "Benchmark written to " + BENCHMARK_FILE;
+			} catch (IOException | RuntimeException e) {
+				message = "Benchmark failed: " + e.getMessage();
+			} finally {
+				// Also after an error, or the controls stay disabled
+				String text = message;
+				EventQueue.invokeLater(() -> {
+					lbl.setText(text);
+					setControlsEnabled(true);
+				});
+			}
+		}, "ICP benchmark");
+		thread.start();
+	}
 
-        String formatted = String.format("nrVertices: %d, k:%f, maxSteps:%d, maxError:%f, iterations:%d, maxReached:%d, averageSteps:%d average error:%.4f",
-                nrVertices, k, maxSteps, maxError, iterations, maxReached, averageSteps, averageError);
+	/**
+	 * Measures the Hausdorff, mean and RMS distance between P and Q on a worker thread and shows it in the dialog.
+	 */
+	private void measureDistance() {
+		SurfaceDistance distance = new SurfaceDistance(m_registration.m_surfP, m_registration.m_surfQ);
+		distance.setSurface(cbSurface.getState());
+		distance.setThreads(getThreads());
+		btnDistance.setEnabled(false);
+		lbl.setText("Measuring distance");
+		Thread thread = new Thread(() -> {
+			String message = "Distance failed";
+			try {
+				distance.compute();
+				message = distance.toString();
+			} catch (RuntimeException e) {
+				message = "Distance failed: " + e.getMessage();
+			} finally {
+				// Also after an error, or the button stays disabled
+				String text = message;
+				EventQueue.invokeLater(() -> {
+					lbl.setText(text);
+					btnDistance.setEnabled(true);
+				});
+			}
+		}, "Surface distance");
+		thread.start();
+	}
 
-        System.out.println(formatted);
-    }
+	/**
+	 * Registers every other surface of the geometry list onto Q with the current options, on a worker thread,
+	 * and prints a line per surface.
+	 */
+	private void registerAll() {
+		applyOptions();
+		PgElementSet reference = m_registration.m_surfQ;
+		java.util.List<PgElementSet> scans = new ArrayList<>();
+		for (int i = 0; i < m_geomList.size(); i++) {
+			if (m_geomList.elementAt(i) != reference) {
+				scans.add((PgElementSet) m_geomList.elementAt(i));
+			}
+		}
+		BatchRegistration batch = new BatchRegistration(reference);
+		batch.setTemplate(m_registration);
+		batch.setThreads(getThreads());
+		batch.setPreAlign(cbPreAlign.getState());
+
+		// A motion of Q would tear the frames of its TargetIndex under the running registrations
+		setControlsEnabled(false);
+		lbl.setText("Registering " + scans.size() + " surfaces");
+		Thread thread = new Thread(() -> {
+			java.util.List<BatchRegistration.Report> reports = new ArrayList<>();
+			String message = "Batch failed";
+			try {
+				reports = batch.run(scans, NR_VERTICES, K, MAX_STEPS, MAX_ERROR);
+				for (BatchRegistration.Report report : reports) {
+					System.out.println(report);
+				}
+				message = "Registered " + reports.size() + " surfaces";
+			} catch (RuntimeException e) {
+				message = "Batch failed: " + e.getMessage();
+			} finally {
+				java.util.List<BatchRegistration.Report> done = reports;
+				String text = message;
+				EventQueue.invokeLater(() -> {
+					for (BatchRegistration.Report report : done) {
+						report.m_scan.update(report.m_scan);
+					}
+					lbl.setText(text);
+					setControlsEnabled(true);
+				});
+			}
+		}, "ICP batch");
+		thread.start();
+	}
 
 	/**
 	 * Tries the find the optimal rigid transformation within maximum steps or until the maximum error was achieved.
+	 * Depending on the selected algorithm the error is the point-to-point or the point-to-plane MSE.
 	 * @param nrVertices The sample size
 	 * @param k threshold
 	 * @param maxSteps The maximum number of steps while converging
@@ -260,63 +430,72 @@ public class RigidTransformation_IP extends PjWorkshop_IP implements ActionListe
 	 */
 	private PdVector applyRigidTransformation(int nrVertices, double k, int maxSteps, double maxError) {
 		lblConfig.setText("n:" + nrVertices + " k:" + k);
+		lbl.setText("Calculating");
+		applyOptions();
+		if(cbPreAlign.getState()) {
+			m_registration.alignPrincipalAxes(nrVertices);
+		}
 
-        double error;
-        double lowestError = Double.MAX_VALUE;
-        int steps = 0;
-
-        for(; steps < maxSteps; steps++) {
-			lblStep.setText("Step: " + steps);
-			lbl.setText("Calculating random vertices");
-			PdVector[] randomVertices = m_registration.getRandomVertices(nrVertices);
-
-			lbl.setText("Calculating closest vertices");
-			PdVector[] closestVertices = m_registration.getClosestVertices(randomVertices);
-
-			lbl.setText("Calculating median");
-			double[] distances = m_registration.getAllDistances(randomVertices, closestVertices);
-			double median = m_registration.getMedian(distances);
-			lblMedian.setText("Median: " + median + " threshold: " + (median * k));
-
-			lbl.setText("Calculating remove list");
-			boolean[] listToRemove = m_registration.getRemoveList(distances, median, k);
-
-			lbl.setText("Creating new removed lists");
-			PdVector[] pointsP = m_registration.removeVertices(randomVertices, listToRemove);
-			PdVector[] pointsQ = m_registration.removeVertices(closestVertices, listToRemove);
-			lblNewSize.setText("New size:(" + pointsP.length + "," + pointsQ.length + ")");
-
-			error = m_registration.calculateError(pointsP, pointsQ);
-            lowestError = (error < lowestError) ? error : lowestError;
-			lblError.setText("Error: " + error);
-
-			if(error < maxError) {
-				break;
+		PdVector result;
+		if(cbMultiStart.getState()) {
+			result = m_registration.registerMultiStart(MULTI_START_TRIALS, nrVertices, k, maxSteps, maxError, MULTI_START_ANGLE, 0);
+		} else if(cbPyramid.getState()) {
+			int[] levelVertices = new int[PYRAMID_LEVELS];
+			double[] levelK = new double[PYRAMID_LEVELS];
+			int[] levelSteps = new int[PYRAMID_LEVELS];
+			double[] levelError = new double[PYRAMID_LEVELS];
+			for(int level = 0; level < PYRAMID_LEVELS; level++) {
+				levelVertices[level] = nrVertices;
+				levelK[level] = k;
+				levelSteps[level] = maxSteps;
+				// The cell size halves per level, so the squared error a level can reach drops by a factor 4
+				levelError[level] = maxError * Math.pow(4, PYRAMID_LEVELS - 1 - level);
 			}
+			result = m_registration.registerMultiresolution(levelVertices, levelK, levelSteps, levelError);
+		} else {
+			result = m_registration.register(nrVertices, k, maxSteps, maxError);
+		}
 
-			lbl.setText("Calculating matrix M");
-			PdMatrix M = m_registration.computeM(pointsP, pointsQ);
-
-			lbl.setText("Calculating SVD");
-			SingularValueDecomposition svd = new SingularValueDecomposition(new Jama.Matrix(M.getEntries()));
-
-			lbl.setText("Calculating optimal rotation");
-			PdMatrix optimalRotation = m_registration.computeOptimalRotation(svd);
-
-			lbl.setText("Calculating optimal translation");
-			PdVector optimalTranslation = m_registration.computeOptimalTranslation(pointsP, pointsQ, optimalRotation);
-
-			lbl.setText("Rotating");
-			m_registration.rotateMesh(optimalRotation, m_registration.m_surfP);
+		lblStep.setText("Step: " + (int)result.getEntry(0));
+		lblError.setText("Error: " + result.getEntry(1));
+		lblMedian.setText("Median: " + m_registration.m_lastMedian + " threshold: " + (m_registration.m_lastMedian * k));
+		lblNewSize.setText("New size:(" + m_registration.m_lastSampleSize + "," + m_registration.m_lastSampleSize + ")");
+		lbl.setText("Done");
+		return result;
+	}
 
-			lbl.setText("Translating");
-			m_registration.translateMesh(optimalTranslation, m_registration.m_surfP);
+	/**
+	 * Passes the options selected in the dialog to the registration.
+	 */
+	private void applyOptions() {
+		m_registration.setBruteForce(cbBruteForce.getState());
+		m_registration.setParallelism(getThreads());
+		m_registration.setPointToPlane(chAlgorithm.getSelectedIndex() == 1);
+		m_registration.setUseKernel(chAlgorithm.getSelectedIndex() == 2);
+		m_registration.setClosestPointOnSurface(cbSurface.getState());
+		m_registration.setSampling(chSampling.getSelectedIndex());
+		m_registration.setRobustWeights(chOutliers.getSelectedIndex());
+		m_registration.setAccumulateTransform(cbAccumulate.getState(), DISPLAY_INTERVAL);
+		m_registration.setExtrapolate(cbExtrapolate.getState());
+		m_registration.setTrackCorrespondences(cbTrack.getState());
+		if(cbDistanceField.getState() && m_registration.m_surfQ != null) {
+			double resolution = IcpPyramid.diagonal(IcpPyramid.toArray(m_registration.m_surfQ.getVertices())) / FIELD_CELLS;
+			m_registration.setDistanceField(true, resolution, resolution * FIELD_BAND_CELLS);
+		} else {
+			m_registration.setDistanceField(false, 0, 0);
+		}
+	}
 
-            lbl.setText("Updating P mesh");
-            m_registration.m_surfP.update(m_registration.m_surfP);
+	/**
+	 * @return The number of threads entered in the dialog, 1 if the entry is not a number
+	 */
+	private int getThreads() {
+		try {
+			return Integer.parseInt(tfThreads.getText().trim());
+		} catch (NumberFormatException e) {
+			tfThreads.setText("1");
+			return 1;
 		}
-		lbl.setText("Done");
-        return new PdVector(steps,lowestError);
 	}
 
 	/**
@@ -0,0 +1,1099 @@
+package workshop;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Topology of a mesh file that is too large to be loaded into a PgElementSet: vertex, edge and face counts,
+ * Euler characteristic, genus, components and boundary, computed while the faces are streamed from an OBJ, PLY or
+ * raw binary file. The coordinates are never read.
+ * Every half-edge is written twice, as a record of its undirected edge and its face, and as a corner record of the
+ * vertex it leaves with the previous and next vertex of its face. The records are sorted in chunks of bounded size
+ * and written to temporary files as sorted runs, so a merge of the runs meets all records of an edge, or of a vertex,
+ * one after the other. The edge merge counts the edges, merges the faces of every edge in a union-find and writes the
+ * boundary edges in order to a file. The corner merge then turns around every vertex like HalfEdgeMesh.getBoundaryLoops,
+ * and merges the boundary edges that follow each other in a union-find over their position in that file.
+ * The union-finds and the boundary edges are memory mapped files. The heap holds a chunk per sort, a read buffer per
+ * run and a bit per vertex; the disk holds 24 bytes per half-edge and 4 bytes per face, which the operating system
+ * pages as it likes.
+ * The counts are the ones of Topology on the same mesh: the vertices that belong to a face, the edges as distinct
+ * pairs of vertices, the components of faces that share an edge, and the boundary loops of HalfEdgeMesh.
+ */
+public class StreamingTopology {
+
+	public static final int FORMAT_OBJ = 0;
+	/** ASCII, binary little or big endian, the faces are read from the list property vertex_indices */
+	public static final int FORMAT_PLY = 1;
+	/**
+	 * Little endian ints: the number of vertices and faces, then per face the number of its vertices and their indices.
+	 * Files with the extension .raw or .bin
+	 */
+	public static final int FORMAT_RAW = 2;
+
+	/** Bytes of a record in a run, a long key and an int value */
+	private static final int RECORD = 12;
+	/** Records per read or write buffer of a run */
+	private static final int RECORDS_PER_BUFFER = 4096;
+	/** Most runs merged at once, more are first merged into longer runs */
+	private static final int MAX_RUNS = 256;
+	/** Bytes per memory mapped segment, a mapping is limited to 2 GB */
+	private static final int SEGMENT_SHIFT = 30;
+
+	/** Records of each sort held in memory before they are written as a run, 24 bytes each with the sort buffers */
+	private int m_chunkSize = 1 << 21;
+	private File m_tempDirectory;
+
+	public void setChunkSize(int chunkSize) {
+		m_chunkSize = Math.max(1024, chunkSize);
+	}
+
+	/**
+	 * @param directory Where the runs, union-finds and boundary edges are written, the default temporary directory if null
+	 */
+	public void setTempDirectory(File directory) {
+		m_tempDirectory = directory;
+	}
+
+	/**
+	 * @return The format by the extension of the file, .obj, .ply, or .raw and .bin for FORMAT_RAW
+	 * @throws IOException For any other extension, rather than parsing a file of another format as raw ints
+	 */
+	public static int getFormat(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".obj")) {
+			return FORMAT_OBJ;
+		}
+		if (name.endsWith(".ply")) {
+			return FORMAT_PLY;
+		}
+		if (name.endsWith(".raw") || name.endsWith(".bin")) {
+			return FORMAT_RAW;
+		}
+		throw new IOException("Unknown mesh format of " + file.getName() + ", expected .obj, .ply, .raw or .bin");
+	}
+
+	public Result analyse(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return analyse(in, getFormat(file));
+		}
+	}
+
+	/**
+	 * Reads the faces from the stream, which is not closed, in a single pass.
+	 * @param format One of FORMAT_OBJ, FORMAT_PLY and FORMAT_RAW
+	 */
+	public Result analyse(InputStream in, int format) throws IOException {
+		try (Pass pass = new Pass()) {
+			Input input = new Input(in);
+			int numVertices;
+			switch (format) {
+				case FORMAT_OBJ:
+					numVertices = readObj(input, pass);
+					break;
+				case FORMAT_PLY:
+					numVertices = readPly(input, pass);
+					break;
+				case FORMAT_RAW:
+					numVertices = readRaw(input, pass);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown format " + format);
+			}
+			return pass.finish(Math.max(numVertices, pass.m_numVertices));
+		}
+	}
+
+	/** Receives the faces from the readers */
+	private interface FaceSink {
+		void face(int[] vertices, int size) throws IOException;
+	}
+
+	/** Receives the records of the runs in sorted order */
+	private interface RecordSink {
+		void record(long key, int value) throws IOException;
+	}
+
+	/**
+	 * The state of one analysis: the two sorts, the used vertices and the temporary files.
+	 */
+	private final class Pass implements FaceSink, Closeable {
+		/** Keyed by the edge as in HalfEdgeMesh, with the face */
+		private final Sorter m_halfEdges = new Sorter();
+		/** Keyed by the vertex and the previous vertex, with the next vertex */
+		private final Sorter m_corners = new Sorter();
+		private final List<File> m_files = new ArrayList<>();
+		private final List<Closeable> m_closeables = new ArrayList<>();
+		private final BitSet m_used = new BitSet();
+		/** One more than the largest vertex of a face */
+		private int m_numVertices;
+		private int m_numElements;
+		private long m_numHalfEdges;
+
+		@Override
+		public void face(int[] vertices, int size) throws IOException {
+			if (m_numElements == Integer.MAX_VALUE) {
+				throw new IOException("More than " + Integer.MAX_VALUE + " faces");
+			}
+			int f = m_numElements++;
+			for (int j = 0; j < size; j++) {
+				if (vertices[j] < 0) {
+					throw new IOException("Face " + f + " has the invalid vertex " + vertices[j]);
+				}
+				m_used.set(vertices[j]);
+				m_numVertices = Math.max(m_numVertices, vertices[j] + 1);
+			}
+			for (int j = 0; j < size; j++) {
+				int a = vertices[j], b = vertices[(j + 1) % size];
+				m_halfEdges.add(edge(a, b), f);
+				m_corners.add(((long) a << 32) | vertices[(j + size - 1) % size], b);
+			}
+			m_numHalfEdges += size;
+		}
+
+		Result finish(int numVertices) throws IOException {
+			EdgeCounter edges = new EdgeCounter(open(m_numElements), new BoundaryEdges(createTempFile("boundary", ".bin")));
+			merge(m_halfEdges.finish(), edges);
+			edges.flush();
+			edges.m_boundary.finish();
+			int numComponents = 0;
+			for (int f = 0; f < m_numElements; f++) {
+				if (edges.m_faceSets.find(f) == f) {
+					numComponents++;
+				}
+			}
+
+			if (edges.m_numBoundaryEdges > Integer.MAX_VALUE) {
+				throw new IOException("More than " + Integer.MAX_VALUE + " boundary edges");
+			}
+			int numBoundaryEdges = (int) edges.m_numBoundaryEdges;
+			CornerWalker corners = new CornerWalker(edges.m_boundary, open(numBoundaryEdges));
+			merge(m_corners.finish(), corners);
+			corners.flush();
+			int numBoundaryLoops = 0;
+			for (int b = 0; b < numBoundaryEdges; b++) {
+				if (corners.m_loops.find(b) == b) {
+					numBoundaryLoops++;
+				}
+			}
+			return new Result(numVertices, m_used.cardinality(), edges.m_numEdges, m_numElements, m_numHalfEdges,
+					numComponents, edges.m_numBoundaryEdges, numBoundaryLoops, edges.m_nonManifoldEdges);
+		}
+
+		private FileDisjointSet open(int size) throws IOException {
+			return new FileDisjointSet(createTempFile("unionfind", ".bin"), size);
+		}
+
+		private File createTempFile(String prefix, String suffix) throws IOException {
+			File file = File.createTempFile(prefix, suffix, m_tempDirectory);
+			m_files.add(file);
+			return file;
+		}
+
+		/** Sorts records in chunks, written as runs when the chunk is full */
+		private final class Sorter {
+			/** The chunk grows up to m_chunkSize, so small files do not pay for it */
+			private long[] m_keys = new long[Math.min(m_chunkSize, 1 << 12)];
+			private int[] m_values = new int[m_keys.length];
+			private long[] m_keysSorted = new long[0];
+			private int[] m_valuesSorted = new int[0];
+			private int m_count;
+			private final List<Run> m_runs = new ArrayList<>();
+
+			void add(long key, int value) throws IOException {
+				if (m_count == m_keys.length) {
+					if (m_keys.length < m_chunkSize) {
+						m_keys = Arrays.copyOf(m_keys, (int) Math.min(m_chunkSize, 2L * m_keys.length));
+						m_values = Arrays.copyOf(m_values, m_keys.length);
+					} else {
+						spill();
+					}
+				}
+				m_keys[m_count] = key;
+				m_values[m_count++] = value;
+			}
+
+			private void spill() throws IOException {
+				sortChunk();
+				RunWriter writer = new RunWriter();
+				for (int i = 0; i < m_count; i++) {
+					writer.record(m_keys[i], m_values[i]);
+				}
+				m_runs.add(writer.finish());
+				m_count = 0;
+			}
+
+			private void sortChunk() {
+				if (m_keysSorted.length < m_count) {
+					m_keysSorted = new long[m_keys.length];
+					m_valuesSorted = new int[m_keys.length];
+				}
+				sort(m_keys, m_values, m_keysSorted, m_valuesSorted, m_count);
+			}
+
+			/**
+			 * @return At most MAX_RUNS runs to merge, the last chunk in memory
+			 */
+			List<Run> finish() throws IOException {
+				sortChunk();
+				m_keysSorted = null;
+				m_valuesSorted = null;
+				while (m_runs.size() >= MAX_RUNS) {
+					List<Run> group = new ArrayList<>(m_runs.subList(0, MAX_RUNS));
+					m_runs.subList(0, MAX_RUNS).clear();
+					RunWriter writer = new RunWriter();
+					merge(group, writer);
+					m_runs.add(writer.finish());
+				}
+				m_runs.add(new Run(m_keys, m_values, m_count));
+				return m_runs;
+			}
+		}
+
+		/** Writes sorted records to a new run file */
+		private final class RunWriter implements RecordSink {
+			private final File m_file = createTempFile("records", ".run");
+			private final FileChannel m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.WRITE);
+			private final ByteBuffer m_buffer = ByteBuffer.allocateDirect(RECORD * RECORDS_PER_BUFFER).order(ByteOrder.nativeOrder());
+
+			RunWriter() throws IOException {
+				m_closeables.add(m_channel);
+			}
+
+			@Override
+			public void record(long key, int value) throws IOException {
+				if (m_buffer.remaining() < RECORD) {
+					write(m_channel, m_buffer);
+				}
+				m_buffer.putLong(key).putInt(value);
+			}
+
+			Run finish() throws IOException {
+				write(m_channel, m_buffer);
+				m_channel.close();
+				return new Run(m_file, m_closeables);
+			}
+		}
+
+		@Override
+		public void close() {
+			for (Closeable closeable : m_closeables) {
+				try {
+					closeable.close();
+				} catch (IOException e) {
+					// The files are deleted anyway
+				}
+			}
+			for (File file : m_files) {
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The key of the edge between a and b, as in HalfEdgeMesh
+	 */
+	private static long edge(int a, int b) {
+		return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Counts the half-edge records of every edge: one is a boundary edge, more than two a non-manifold edge,
+	 * and the faces of an edge are merged.
+	 */
+	private static final class EdgeCounter implements RecordSink {
+		final FileDisjointSet m_faceSets;
+		final BoundaryEdges m_boundary;
+		long m_numEdges;
+		long m_numBoundaryEdges;
+		long m_nonManifoldEdges;
+		private long m_edge;
+		private int m_face;
+		private int m_count;
+
+		EdgeCounter(FileDisjointSet faceSets, BoundaryEdges boundary) {
+			m_faceSets = faceSets;
+			m_boundary = boundary;
+		}
+
+		@Override
+		public void record(long edge, int face) throws IOException {
+			if (m_count > 0 && edge == m_edge) {
+				m_faceSets.union(m_face, face);
+				m_count++;
+				return;
+			}
+			flush();
+			m_edge = edge;
+			m_face = face;
+			m_count = 1;
+		}
+
+		void flush() throws IOException {
+			if (m_count == 0) {
+				return;
+			}
+			m_numEdges++;
+			if (m_count == 1) {
+				m_boundary.add(m_edge);
+				m_numBoundaryEdges++;
+			} else if (m_count > 2) {
+				m_nonManifoldEdges++;
+			}
+			m_count = 0;
+		}
+	}
+
+	/**
+	 * Collects the corners of every vertex and merges the boundary edges that HalfEdgeMesh.nextBoundary connects at it.
+	 * Side 2c of corner c is its edge to the previous vertex, side 2c + 1 its edge to the next vertex, one side per
+	 * half-edge at the vertex. Turning from a side to the other side of its corner and across an edge of two faces to
+	 * the side of the other face is the turn of nextBoundary, so the boundary edges end up in the same set if and only
+	 * if they are on the same boundary loop.
+	 */
+	private static final class CornerWalker implements RecordSink {
+		final BoundaryEdges m_boundary;
+		final FileDisjointSet m_loops;
+		private int m_vertex;
+		private int m_degree;
+		private int[] m_neighbours = new int[32];
+		/** Per side: the neighbour and the side in the upper and lower half, sorted by the neighbour */
+		private long[] m_sides = new long[32];
+		/** Per side: the number of half-edges of its edge, and the side of the other face if there are two */
+		private int[] m_valence = new int[32];
+		private int[] m_twin = new int[32];
+
+		CornerWalker(BoundaryEdges boundary, FileDisjointSet loops) {
+			m_boundary = boundary;
+			m_loops = loops;
+		}
+
+		@Override
+		public void record(long key, int next) {
+			int vertex = (int) (key >>> 32);
+			if (m_degree > 0 && vertex != m_vertex) {
+				flush();
+			}
+			m_vertex = vertex;
+			if (2 * m_degree + 2 > m_neighbours.length) {
+				int length = 2 * m_neighbours.length;
+				m_neighbours = Arrays.copyOf(m_neighbours, length);
+				m_sides = new long[length];
+				m_valence = new int[length];
+				m_twin = new int[length];
+			}
+			m_neighbours[2 * m_degree] = (int) key;
+			m_neighbours[2 * m_degree + 1] = next;
+			m_degree++;
+		}
+
+		void flush() {
+			int numSides = 2 * m_degree;
+			for (int s = 0; s < numSides; s++) {
+				m_sides[s] = ((long) m_neighbours[s] << 32) | s;
+			}
+			Arrays.sort(m_sides, 0, numSides);
+			boolean boundary = false;
+			for (int i = 0, j; i < numSides; i = j) {
+				for (j = i + 1; j < numSides && (m_sides[j] >>> 32) == (m_sides[i] >>> 32); j++) {
+					// The sides of the same edge
+				}
+				for (int k = i; k < j; k++) {
+					int s = (int) m_sides[k];
+					m_valence[s] = j - i;
+					// With two sides k and i + j - 1 - k are the two
+					m_twin[s] = (j - i == 2) ? (int) m_sides[i + j - 1 - k] : -1;
+				}
+				boundary |= j - i == 1;
+			}
+			if (boundary) {
+				for (int s = 0; s < numSides; s++) {
+					if (m_valence[s] != 1) {
+						continue;
+					}
+					int g = s ^ 1, partner = -1;
+					for (int turns = 0; turns <= m_degree; turns++) {
+						if (m_valence[g] == 1) {
+							partner = g;
+							break;
+						}
+						if (m_twin[g] < 0) {
+							// Edge of more than two faces
+							break;
+						}
+						g = m_twin[g] ^ 1;
+					}
+					// Every connection is found from both of its sides
+					if (partner > s) {
+						m_loops.union(m_boundary.indexOf(edge(m_vertex, m_neighbours[s])),
+								m_boundary.indexOf(edge(m_vertex, m_neighbours[partner])));
+					}
+				}
+			}
+			m_degree = 0;
+		}
+	}
+
+	/**
+	 * Merges sorted runs into sink, records of equal keys in the order of the runs.
+	 */
+	private static void merge(List<Run> runs, RecordSink sink) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+				(a, b) -> (a.m_key != b.m_key) ? Long.compare(a.m_key, b.m_key) : Integer.compare(a.m_index, b.m_index));
+		for (int i = 0; i < runs.size(); i++) {
+			Run run = runs.get(i);
+			run.m_index = i;
+			if (run.advance()) {
+				queue.add(run);
+			}
+		}
+		while (!queue.isEmpty()) {
+			Run run = queue.poll();
+			sink.record(run.m_key, run.m_value);
+			if (run.advance()) {
+				queue.add(run);
+			}
+		}
+	}
+
+	/** A sorted sequence of records, in a file or the last chunk in memory */
+	private static final class Run {
+		private final long[] m_keys;
+		private final int[] m_values;
+		private final int m_count;
+		private int m_position;
+		private final FileChannel m_channel;
+		private final ByteBuffer m_buffer;
+		/** The current record and the position of the run in its merge */
+		long m_key;
+		int m_value;
+		int m_index;
+
+		Run(long[] keys, int[] values, int count) {
+			m_keys = keys;
+			m_values = values;
+			m_count = count;
+			m_channel = null;
+			m_buffer = null;
+		}
+
+		Run(File file, List<Closeable> closeables) throws IOException {
+			m_keys = null;
+			m_values = null;
+			m_count = 0;
+			m_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			closeables.add(m_channel);
+			m_buffer = ByteBuffer.allocateDirect(RECORD * RECORDS_PER_BUFFER).order(ByteOrder.nativeOrder());
+			m_buffer.flip();
+		}
+
+		/**
+		 * @return False at the end of the run, which then closes its file
+		 */
+		boolean advance() throws IOException {
+			if (m_channel == null) {
+				if (m_position == m_count) {
+					return false;
+				}
+				m_key = m_keys[m_position];
+				m_value = m_values[m_position++];
+				return true;
+			}
+			if (m_buffer.remaining() < RECORD) {
+				m_buffer.compact();
+				while (m_buffer.hasRemaining() && m_channel.read(m_buffer) >= 0) {
+					// Until full or at the end of the file
+				}
+				m_buffer.flip();
+				if (m_buffer.remaining() < RECORD) {
+					m_channel.close();
+					return false;
+				}
+			}
+			m_key = m_buffer.getLong();
+			m_value = m_buffer.getInt();
+			return true;
+		}
+	}
+
+	/**
+	 * Sorts the first n keys with their values by the key, a stable radix sort on 16 bits at a time
+	 * that skips the digits all keys share. The keys must not be negative.
+	 */
+	static void sort(long[] keys, int[] values, long[] keysTemp, int[] valuesTemp, int n) {
+		int[] start = new int[1 << 16];
+		long[] fromKeys = keys, toKeys = keysTemp;
+		int[] fromValues = values, toValues = valuesTemp;
+		for (int shift = 0; shift < 64 && n > 1; shift += 16) {
+			Arrays.fill(start, 0);
+			for (int i = 0; i < n; i++) {
+				start[(int) (fromKeys[i] >>> shift) & 0xffff]++;
+			}
+			if (start[(int) (fromKeys[0] >>> shift) & 0xffff] == n) {
+				continue;
+			}
+			int sum = 0;
+			for (int d = 0; d < start.length; d++) {
+				int count = start[d];
+				start[d] = sum;
+				sum += count;
+			}
+			for (int i = 0; i < n; i++) {
+				int to = start[(int) (fromKeys[i] >>> shift) & 0xffff]++;
+				toKeys[to] = fromKeys[i];
+				toValues[to] = fromValues[i];
+			}
+			long[] swapKeys = fromKeys;
+			fromKeys = toKeys;
+			toKeys = swapKeys;
+			int[] swapValues = fromValues;
+			fromValues = toValues;
+			toValues = swapValues;
+		}
+		if (fromKeys != keys) {
+			System.arraycopy(fromKeys, 0, keys, 0, n);
+			System.arraycopy(fromValues, 0, values, 0, n);
+		}
+	}
+
+	/**
+	 * Maps the first bytes of the file in segments of 2^SEGMENT_SHIFT bytes. The mappings stay valid after the file
+	 * is closed and are released when they are collected.
+	 */
+	private static ByteBuffer[] map(File file, long bytes, FileChannel.MapMode mode) throws IOException {
+		ByteBuffer[] segments = new ByteBuffer[(int) ((bytes + (1L << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT)];
+		try (RandomAccessFile random = new RandomAccessFile(file, (mode == FileChannel.MapMode.READ_ONLY) ? "r" : "rw")) {
+			FileChannel channel = random.getChannel();
+			for (int s = 0; s < segments.length; s++) {
+				long first = (long) s << SEGMENT_SHIFT;
+				segments[s] = channel.map(mode, first, Math.min(bytes - first, 1L << SEGMENT_SHIFT)).order(ByteOrder.nativeOrder());
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * The boundary edges in sorted order, written during the edge merge and then looked up by binary search.
+	 */
+	private static final class BoundaryEdges {
+		private static final int LONG_SHIFT = SEGMENT_SHIFT - 3;
+		private static final int LONG_MASK = (1 << LONG_SHIFT) - 1;
+
+		private final File m_file;
+		private FileChannel m_channel;
+		private ByteBuffer m_buffer = ByteBuffer.allocateDirect(8 * RECORDS_PER_BUFFER).order(ByteOrder.nativeOrder());
+		private long m_count;
+		private LongBuffer[] m_segments;
+
+		BoundaryEdges(File file) throws IOException {
+			m_file = file;
+			m_channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		}
+
+		void add(long edge) throws IOException {
+			if (!m_buffer.hasRemaining()) {
+				write(m_channel, m_buffer);
+			}
+			m_buffer.putLong(edge);
+			m_count++;
+		}
+
+		void finish() throws IOException {
+			write(m_channel, m_buffer);
+			m_channel.close();
+			m_channel = null;
+			m_buffer = null;
+			ByteBuffer[] bytes = map(m_file, 8 * m_count, FileChannel.MapMode.READ_ONLY);
+			m_segments = new LongBuffer[bytes.length];
+			for (int s = 0; s < bytes.length; s++) {
+				m_segments[s] = bytes[s].asLongBuffer();
+			}
+		}
+
+		private long get(long i) {
+			return m_segments[(int) (i >>> LONG_SHIFT)].get((int) (i & LONG_MASK));
+		}
+
+		/**
+		 * @return The position of a boundary edge in the order of the edges
+		 */
+		int indexOf(long edge) {
+			long lo = 0, hi = m_count - 1;
+			while (lo < hi) {
+				long mid = (lo + hi) >>> 1;
+				if (get(mid) < edge) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return (int) lo;
+		}
+	}
+
+	/**
+	 * Union-find like DisjointSet, on ints in a memory mapped file, for a single thread.
+	 */
+	private static final class FileDisjointSet {
+		private static final int INT_SHIFT = SEGMENT_SHIFT - 2;
+		private static final int INT_MASK = (1 << INT_SHIFT) - 1;
+
+		private final IntBuffer[] m_segments;
+
+		FileDisjointSet(File file, int size) throws IOException {
+			ByteBuffer[] bytes = map(file, 4L * size, FileChannel.MapMode.READ_WRITE);
+			m_segments = new IntBuffer[bytes.length];
+			for (int s = 0; s < bytes.length; s++) {
+				m_segments[s] = bytes[s].asIntBuffer();
+			}
+			for (int i = 0; i < size; i++) {
+				set(i, i);
+			}
+		}
+
+		private int get(int i) {
+			return m_segments[i >>> INT_SHIFT].get(i & INT_MASK);
+		}
+
+		private void set(int i, int value) {
+			m_segments[i >>> INT_SHIFT].put(i & INT_MASK, value);
+		}
+
+		int find(int x) {
+			int parent = get(x);
+			while (parent != x) {
+				int grandparent = get(parent);
+				set(x, grandparent);
+				x = grandparent;
+				parent = get(x);
+			}
+			return x;
+		}
+
+		void union(int a, int b) {
+			int rootA = find(a);
+			int rootB = find(b);
+			if (rootA != rootB) {
+				set(Math.max(rootA, rootB), Math.min(rootA, rootB));
+			}
+		}
+	}
+
+	/**
+	 * Reads the faces of an OBJ file, with negative indices relative to the vertices read so far.
+	 * @return The number of vertices
+	 */
+	private static int readObj(Input in, FaceSink sink) throws IOException {
+		int numVertices = 0;
+		int[] face = new int[16];
+		while (in.peek() >= 0) {
+			in.skipBlanks();
+			int c = in.read();
+			if (c == 'v' && isBlank(in.peek())) {
+				numVertices++;
+			} else if (c == 'f' && isBlank(in.peek())) {
+				int size = 0;
+				while (true) {
+					in.skipBlanks();
+					int p = in.peek();
+					if (p == '\n' || p == '\r' || p < 0) {
+						break;
+					}
+					long index = in.parseLong();
+					// Texture and normal indices
+					in.skipWord();
+					if (index == 0) {
+						throw new IOException("Face with vertex index 0");
+					}
+					if (size == face.length) {
+						face = Arrays.copyOf(face, size * 2);
+					}
+					index = (index > 0) ? index - 1 : numVertices + index;
+					if (index < 0 || index > Integer.MAX_VALUE) {
+						throw new IOException("Face with vertex index out of range");
+					}
+					face[size++] = (int) index;
+				}
+				if (size > 0) {
+					sink.face(face, size);
+				}
+			}
+			if (c != '\n') {
+				in.skipLine();
+			}
+		}
+		return numVertices;
+	}
+
+	/** Types of PLY properties: the size in bytes, with flags */
+	private static final int PLY_UNSIGNED = 16;
+	private static final int PLY_FLOAT = 32;
+
+	/**
+	 * Reads the faces of a PLY file, skipping all other elements and properties.
+	 * @return The number of vertices
+	 */
+	private static int readPly(Input in, FaceSink sink) throws IOException {
+		if (!"ply".equals(in.readLine())) {
+			throw new IOException("Not a PLY file");
+		}
+		boolean ascii = true;
+		List<String> names = new ArrayList<>();
+		List<Long> counts = new ArrayList<>();
+		// Per element the properties as {type, type of the list count or -1, 1 for the face indices}
+		List<List<int[]>> properties = new ArrayList<>();
+		String line;
+		while (!"end_header".equals(line = in.readLine())) {
+			if (line == null) {
+				throw new IOException("PLY header without end_header");
+			}
+			String[] words = line.trim().split("\\s+");
+			if (words[0].equals("format")) {
+				ascii = words[1].equals("ascii");
+				in.m_bigEndian = words[1].equals("binary_big_endian");
+			} else if (words[0].equals("element")) {
+				names.add(words[1]);
+				counts.add(Long.parseLong(words[2]));
+				properties.add(new ArrayList<>());
+			} else if (words[0].equals("property") && !properties.isEmpty()) {
+				List<int[]> element = properties.get(properties.size() - 1);
+				if (words[1].equals("list")) {
+					boolean indices = words[4].equals("vertex_indices") || words[4].equals("vertex_index");
+					element.add(new int[] {plyType(words[3]), plyType(words[2]), indices ? 1 : 0});
+				} else {
+					element.add(new int[] {plyType(words[1]), -1, 0});
+				}
+			}
+		}
+
+		int numVertices = 0;
+		for (int e = 0; e < names.size(); e++) {
+			if (counts.get(e) < 0 || counts.get(e) > Integer.MAX_VALUE) {
+				throw new IOException("PLY element " + names.get(e) + " with count " + counts.get(e));
+			}
+			if (names.get(e).equals("vertex")) {
+				numVertices = (int) (long) counts.get(e);
+			}
+		}
+		int[] face = new int[16];
+		for (int e = 0; e < names.size(); e++) {
+			boolean faces = names.get(e).equals("face");
+			for (long r = 0; r < counts.get(e); r++) {
+				int size = -1;
+				for (int[] property : properties.get(e)) {
+					if (property[1] < 0) {
+						in.skipValue(property[0], ascii);
+						continue;
+					}
+					long n = in.readInteger(property[1], ascii);
+					boolean indices = faces && property[2] == 1;
+					if (n < 0 || n > Integer.MAX_VALUE) {
+						throw new IOException("PLY list of size " + n);
+					}
+					if (indices && n > face.length) {
+						face = Arrays.copyOf(face, (int) Math.max(n, face.length * 2));
+					}
+					for (int i = 0; i < n; i++) {
+						if (indices) {
+							face[i] = checkIndex(in.readInteger(property[0], ascii), numVertices);
+						} else {
+							in.skipValue(property[0], ascii);
+						}
+					}
+					if (indices) {
+						size = (int) n;
+					}
+				}
+				if (size >= 0) {
+					sink.face(face, size);
+				} else if (faces) {
+					throw new IOException("PLY faces without vertex_indices");
+				}
+			}
+		}
+		return numVertices;
+	}
+
+	private static int plyType(String name) throws IOException {
+		switch (name) {
+			case "char": case "int8":
+				return 1;
+			case "uchar": case "uint8":
+				return 1 | PLY_UNSIGNED;
+			case "short": case "int16":
+				return 2;
+			case "ushort": case "uint16":
+				return 2 | PLY_UNSIGNED;
+			case "int": case "int32":
+				return 4;
+			case "uint": case "uint32":
+				return 4 | PLY_UNSIGNED;
+			case "float": case "float32":
+				return 4 | PLY_FLOAT;
+			case "double": case "float64":
+				return 8 | PLY_FLOAT;
+			default:
+				throw new IOException("Unknown PLY type " + name);
+		}
+	}
+
+	/**
+	 * Reads the faces of a FORMAT_RAW file.
+	 * @return The number of vertices
+	 */
+	private static int readRaw(Input in, FaceSink sink) throws IOException {
+		int numVertices = (int) in.readInteger(4, false);
+		int numElements = (int) in.readInteger(4, false);
+		if (numVertices < 0 || numElements < 0) {
+			throw new IOException("Raw file with " + numVertices + " vertices and " + numElements + " faces");
+		}
+		int[] face = new int[16];
+		for (int f = 0; f < numElements; f++) {
+			int size = (int) in.readInteger(4, false);
+			if (size < 0) {
+				throw new IOException("Face " + f + " of size " + size);
+			}
+			if (size > face.length) {
+				face = Arrays.copyOf(face, Math.max(size, face.length * 2));
+			}
+			for (int i = 0; i < size; i++) {
+				face[i] = checkIndex(in.readInteger(4, false), numVertices);
+			}
+			sink.face(face, size);
+		}
+		return numVertices;
+	}
+
+	/**
+	 * @return The index, if it is a vertex index below numVertices
+	 */
+	private static int checkIndex(long index, int numVertices) throws IOException {
+		if (index < 0 || index >= numVertices) {
+			throw new IOException("Vertex index " + index + " of " + numVertices + " vertices");
+		}
+		return (int) index;
+	}
+
+	private static boolean isBlank(int c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	/** Buffered bytes with the parsing the readers need, text without charset decoding */
+	private static final class Input {
+		private final InputStream m_in;
+		private final byte[] m_buffer = new byte[1 << 16];
+		private int m_position;
+		private int m_end;
+		/** Byte order of binary values, little endian unless set */
+		boolean m_bigEndian;
+
+		Input(InputStream in) {
+			m_in = in;
+		}
+
+		/**
+		 * @return The next byte without reading it, -1 at the end
+		 */
+		int peek() throws IOException {
+			if (m_position == m_end) {
+				m_end = Math.max(0, m_in.read(m_buffer, 0, m_buffer.length));
+				m_position = 0;
+				if (m_end == 0) {
+					return -1;
+				}
+			}
+			return m_buffer[m_position] & 0xff;
+		}
+
+		int read() throws IOException {
+			int c = peek();
+			if (c >= 0) {
+				m_position++;
+			}
+			return c;
+		}
+
+		/**
+		 * @return The line without its end, null at the end of the input
+		 */
+		String readLine() throws IOException {
+			if (peek() < 0) {
+				return null;
+			}
+			StringBuilder line = new StringBuilder();
+			for (int c = read(); c >= 0 && c != '\n'; c = read()) {
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return line.toString();
+		}
+
+		void skipLine() throws IOException {
+			for (int c = read(); c >= 0 && c != '\n'; c = read()) {
+				// Up to the end of the line
+			}
+		}
+
+		void skipBlanks() throws IOException {
+			while (isBlank(peek())) {
+				m_position++;
+			}
+		}
+
+		private void skipSpaces() throws IOException {
+			while (isSpace(peek())) {
+				m_position++;
+			}
+		}
+
+		void skipWord() throws IOException {
+			for (int c = peek(); c >= 0 && !isSpace(c); c = peek()) {
+				m_position++;
+			}
+		}
+
+		/**
+		 * @return The decimal integer at the current position, which ends at the first other character
+		 */
+		long parseLong() throws IOException {
+			boolean negative = peek() == '-';
+			if (negative || peek() == '+') {
+				m_position++;
+			}
+			long value = 0;
+			int digits = 0;
+			for (int c = peek(); c >= '0' && c <= '9'; c = peek()) {
+				value = value * 10 + (c - '0');
+				digits++;
+				m_position++;
+			}
+			if (digits == 0) {
+				throw new IOException("Number expected instead of " + (char) peek());
+			}
+			return negative ? -value : value;
+		}
+
+		/**
+		 * @param type A PLY type, integral in binary
+		 */
+		long readInteger(int type, boolean ascii) throws IOException {
+			if (ascii) {
+				skipSpaces();
+				long value = parseLong();
+				skipWord();
+				return value;
+			}
+			if ((type & PLY_FLOAT) != 0) {
+				throw new IOException("Float where an integer is expected");
+			}
+			int size = type & 15;
+			long value = 0;
+			for (int i = 0; i < size; i++) {
+				int c = read();
+				if (c < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+				value = m_bigEndian ? (value << 8) | c : value | ((long) c << (8 * i));
+			}
+			if ((type & PLY_UNSIGNED) == 0) {
+				// Sign extension
+				value = (value << (64 - 8 * size)) >> (64 - 8 * size);
+			}
+			return value;
+		}
+
+		void skipValue(int type, boolean ascii) throws IOException {
+			if (ascii) {
+				skipSpaces();
+				skipWord();
+				return;
+			}
+			for (int i = type & 15; i > 0; i--) {
+				if (read() < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+			}
+		}
+	}
+
+	/** The topology of a mesh file */
+	public static class Result {
+		/** The vertices of the file, including the ones without a face */
+		public final int m_numVertices;
+		/** The vertices that belong to a face */
+		public final int m_numUsedVertices;
+		public final long m_numEdges;
+		public final int m_numElements;
+		public final long m_numHalfEdges;
+		/** Components of faces that share an edge */
+		public final int m_numComponents;
+		/** Edges of a single face */
+		public final long m_numBoundaryEdges;
+		public final int m_numBoundaryLoops;
+		/** Edges of more than two faces */
+		public final long m_nonManifoldEdges;
+
+		Result(int numVertices, int numUsedVertices, long numEdges, int numElements, long numHalfEdges, int numComponents,
+				long numBoundaryEdges, int numBoundaryLoops, long nonManifoldEdges) {
+			m_numVertices = numVertices;
+			m_numUsedVertices = numUsedVertices;
+			m_numEdges = numEdges;
+			m_numElements = numElements;
+			m_numHalfEdges = numHalfEdges;
+			m_numComponents = numComponents;
+			m_numBoundaryEdges = numBoundaryEdges;
+			m_numBoundaryLoops = numBoundaryLoops;
+			m_nonManifoldEdges = nonManifoldEdges;
+		}
+
+		/**
+		 * @return V - E + F over the vertices that belong to a face
+		 */
+		public long getEulerCharacteristic() {
+			return m_numUsedVertices - m_numEdges + m_numElements;
+		}
+
+		/**
+		 * @return The genus from V - E + F = 2c - 2g - b, as Topology.calculateGenus
+		 */
+		public long getGenus() {
+			return (2L * m_numComponents - getEulerCharacteristic() - m_numBoundaryLoops) / 2;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("V %d, E %d, F %d, Euler %d, genus %d, %d components, %d boundary edges in %d loops, %d non-manifold edges",
+					m_numUsedVertices, m_numEdges, m_numElements, getEulerCharacteristic(), getGenus(), m_numComponents,
+					m_numBoundaryEdges, m_numBoundaryLoops, m_nonManifoldEdges);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Distance between two surfaces, measured at their vertices: every vertex of one surface is matched to the closest
+ * point on the surface of the other one, or to its closest vertex, through a TriangleBvh or KdTree.
+ * Gives the one-sided and symmetric Hausdorff distance, the mean and RMS distance and the distance of every vertex.
+ * The indices are built for every compute from the current vertices, so surfaces edited in place are measured correctly,
+ * and the queries run in parallel. The mean and RMS weight every vertex equally, not by area.
+ */
+public class SurfaceDistance {
+
+	/** Number of vertices handled by a single task */
+	private static final int GRAIN = 1024;
+
+	private final PgElementSet m_a;
+	private final PgElementSet m_b;
+	private boolean m_surface = true;
+	private int m_threads = Runtime.getRuntime().availableProcessors();
+
+	/** From the vertices of A to B and from the vertices of B to A, set by compute */
+	private Side m_ab;
+	private Side m_ba;
+
+	public SurfaceDistance(PgElementSet a, PgElementSet b) {
+		m_a = a;
+		m_b = b;
+	}
+
+	/**
+	 * @param surface If true vertices are matched to the closest point on the other surface, otherwise to its
+	 *                closest vertex. A surface without elements is always measured at its vertices.
+	 */
+	public void setSurface(boolean surface) {
+		m_surface = surface;
+	}
+
+	/**
+	 * @param threads The number of threads of the queries, 1 runs them on the calling thread
+	 */
+	public void setThreads(int threads) {
+		m_threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Measures both directions.
+	 */
+	public void compute() {
+		ForkJoinPool pool = (m_threads > 1) ? new ForkJoinPool(m_threads) : null;
+		try {
+			double[] a = IcpPyramid.toArray(m_a.getVertices());
+			double[] b = IcpPyramid.toArray(m_b.getVertices());
+			ClosestPoint[] indices = new ClosestPoint[2];
+			// Both indices at the same time
+			ParallelRange.forEach(pool, 2, 1, (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
+					indices[i] = buildIndex((i == 0) ? m_b : m_a, (i == 0) ? b : a);
+				}
+			});
+			m_ab = new Side(a, indices[0], pool);
+			m_ba = new Side(b, indices[1], pool);
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * @return From the vertices of A to B
+	 */
+	public Side getForward() {
+		return m_ab;
+	}
+
+	/**
+	 * @return From the vertices of B to A
+	 */
+	public Side getBackward() {
+		return m_ba;
+	}
+
+	/**
+	 * @return The symmetric Hausdorff distance, the larger of the two one-sided ones
+	 */
+	public double getHausdorff() {
+		return Math.max(m_ab.m_max, m_ba.m_max);
+	}
+
+	/**
+	 * @return The mean distance over the vertices of both surfaces
+	 */
+	public double getMean() {
+		return (m_ab.m_sum + m_ba.m_sum) / Math.max(1, m_ab.m_distances.length + m_ba.m_distances.length);
+	}
+
+	/**
+	 * @return The RMS distance over the vertices of both surfaces
+	 */
+	public double getRms() {
+		return Math.sqrt((m_ab.m_sumOfSquares + m_ba.m_sumOfSquares) / Math.max(1, m_ab.m_distances.length + m_ba.m_distances.length));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Hausdorff %.6g (%.6g / %.6g), mean %.6g, RMS %.6g",
+				getHausdorff(), m_ab.m_max, m_ba.m_max, getMean(), getRms());
+	}
+
+	/**
+	 * @return A TriangleBvh over the surface if it is measured on the surface and has triangles, otherwise a KdTree over the vertices
+	 */
+	private ClosestPoint buildIndex(PgElementSet target, double[] xyz) {
+		if (m_surface && target.getElements() != null && target.getElements().length > 0) {
+			TriangleBvh bvh = new TriangleBvh(target);
+			if (bvh.getNumTriangles() > 0) {
+				return (points, offset, closest) -> bvh.closestPoint(points, offset, closest, 0);
+			}
+		}
+		KdTree tree = new KdTree(xyz);
+		return (points, offset, closest) -> {
+			int nearest = tree.nearest(points[offset], points[offset + 1], points[offset + 2]);
+			System.arraycopy(xyz, nearest * 3, closest, 0, 3);
+		};
+	}
+
+	/** Closest point of the other surface, safe to call from multiple threads */
+	private interface ClosestPoint {
+		void find(double[] points, int offset, double[] closest);
+	}
+
+	/** The distances from the vertices of one surface to the other one */
+	public static class Side {
+		/** The distance of every vertex */
+		public final double[] m_distances;
+		/** The one-sided Hausdorff distance and the vertex where it is attained, -1 if there are no vertices */
+		public final double m_max;
+		public final int m_maxVertex;
+		public final double m_mean;
+		public final double m_rms;
+		private final double m_sum;
+		private final double m_sumOfSquares;
+
+		Side(double[] from, ClosestPoint index, ForkJoinPool pool) {
+			int n = from.length / 3;
+			m_distances = new double[n];
+			ParallelRange.forEach(pool, n, GRAIN, (lo, hi) -> {
+				double[] closest = new double[3];
+				for (int i = lo; i < hi; i++) {
+					index.find(from, i * 3, closest);
+					double dx = from[i * 3] - closest[0], dy = from[i * 3 + 1] - closest[1], dz = from[i * 3 + 2] - closest[2];
+					m_distances[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+				}
+			});
+
+			double max = 0, sum = 0, sumOfSquares = 0;
+			int maxVertex = -1;
+			for (int i = 0; i < n; i++) {
+				double d = m_distances[i];
+				if (d > max || maxVertex < 0) {
+					max = d;
+					maxVertex = i;
+				}
+				sum += d;
+				sumOfSquares += d * d;
+			}
+			m_max = max;
+			m_maxVertex = maxVertex;
+			m_sum = sum;
+			m_sumOfSquares = sumOfSquares;
+			m_mean = sum / Math.max(1, n);
+			m_rms = Math.sqrt(sumOfSquares / Math.max(1, n));
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Spatial index over a registration target: a k-d tree over its vertices and, built on first use,
+ * a hierarchy over its triangles for closest point on surface queries.
+ * Both are kept in the frame the target had when they were built, together with the motion from that frame
+ * to the current vertices. A rigid motion of the target only updates this motion, see move.
+ * Indices are shared through a cache keyed by the identity of the geometry, so registering against the same
+ * target again costs no setup. get keeps a checksum of the coordinates, computed as in GeometryReport, so both caches
+ * notice the same edits. If it changed, the entry is kept only if every vertex is where the motions passed to move
+ * put it, otherwise the index is rebuilt. This catches replaced vertex sets and any edit in place.
+ */
+public class TargetIndex implements PointLocator {
+
+	private static final Map<PgElementSet, TargetIndex> CACHE = new WeakHashMap<>();
+
+	private final KdTree m_tree;
+	private final int m_numVertices;
+	/** The vertices the index was built over, in the frame of the tree, xyz interleaved */
+	private final double[] m_coords;
+	/** Checksum of the vertices when get last found them to match */
+	private long m_checksum;
+	/** From the frame of the tree to the current vertices and back */
+	private final RigidMotion m_treeFrame = new RigidMotion();
+	private final RigidMotion m_treeInverse = new RigidMotion();
+
+	/** Built on first use, in the frame of m_bvhFrame */
+	private volatile TriangleBvh m_bvh;
+	private final RigidMotion m_bvhFrame = new RigidMotion();
+	private final RigidMotion m_bvhInverse = new RigidMotion();
+	/** Built by buildDistanceField, in the frame of m_fieldFrame */
+	private volatile DistanceField m_field;
+	private final RigidMotion m_fieldFrame = new RigidMotion();
+	private final RigidMotion m_fieldInverse = new RigidMotion();
+	/** Weak, the cache must not keep its keys alive */
+	private final WeakReference<PgElementSet> m_geometry;
+
+	private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[3]);
+
+	private TargetIndex(PgElementSet geometry) {
+		m_geometry = new WeakReference<>(geometry);
+		PdVector[] vertices = geometry.getVertices();
+		m_coords = IcpPyramid.toArray(vertices);
+		m_tree = new KdTree(m_coords);
+		m_numVertices = vertices.length;
+		m_checksum = GeometryReport.checksum(vertices);
+	}
+
+	/**
+	 * @return The cached index of the geometry, built if there is none or its vertices have changed
+	 */
+	public static TargetIndex get(PgElementSet geometry) {
+		synchronized (CACHE) {
+			TargetIndex index = CACHE.get(geometry);
+			if (index == null || !index.matches(geometry)) {
+				index = new TargetIndex(geometry);
+				CACHE.put(geometry, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Drops the cached index of the geometry, the next get rebuilds it.
+	 */
+	public static void invalidate(PgElementSet geometry) {
+		synchronized (CACHE) {
+			CACHE.remove(geometry);
+		}
+	}
+
+	/**
+	 * Updates the index after the vertices of its geometry have been moved by the given motion, in O(1).
+	 */
+	public synchronized void move(RigidMotion motion) {
+		m_treeFrame.preMultiply(motion.m_rotation, motion.m_translation[0], motion.m_translation[1], motion.m_translation[2]);
+		m_treeInverse.setInverse(m_treeFrame);
+		m_bvhFrame.preMultiply(motion.m_rotation, motion.m_translation[0], motion.m_translation[1], motion.m_translation[2]);
+		m_bvhInverse.setInverse(m_bvhFrame);
+		m_fieldFrame.preMultiply(motion.m_rotation, motion.m_translation[0], motion.m_translation[1], motion.m_translation[2]);
+		m_fieldInverse.setInverse(m_fieldFrame);
+	}
+
+	/**
+	 * @return True if the vertices of the geometry are unchanged since the last get or are where the index expects them
+	 */
+	private synchronized boolean matches(PgElementSet geometry) {
+		PdVector[] vertices = geometry.getVertices();
+		if (vertices.length != m_numVertices) {
+			return false;
+		}
+		long checksum = GeometryReport.checksum(vertices);
+		if (checksum == m_checksum) {
+			return true;
+		}
+		// Changed since the last get, which is fine if only the motions passed to move have been applied
+		double[] expected = new double[3];
+		for (int i = 0; i < m_numVertices; i++) {
+			m_treeFrame.apply(m_coords, i * 3, expected, 0);
+			double[] actual = vertices[i].m_data;
+			for (int a = 0; a < 3; a++) {
+				if (Math.abs(expected[a] - actual[a]) > 1e-9 * (1 + Math.abs(actual[a]))) {
+					return false;
+				}
+			}
+		}
+		m_checksum = checksum;
+		return true;
+	}
+
+	public int nearest(double x, double y, double z) {
+		double[] p = SCRATCH.get();
+		p[0] = x;
+		p[1] = y;
+		p[2] = z;
+		m_treeInverse.apply(p, 0, p, 0);
+		return m_tree.nearest(p[0], p[1], p[2]);
+	}
+
+	/**
+	 * @return The index of the vertex closest to the given point
+	 */
+	public int nearest(PdVector point) {
+		double[] p = point.m_data;
+		return nearest(p[0], p[1], p[2]);
+	}
+
+	/**
+	 * Finds the closest point on the surface of the geometry, see TriangleBvh.closestPoint.
+	 * @return The element that contains the closest point, -1 if the geometry has no triangles
+	 */
+	public int closestPoint(double[] points, int offset, double[] closest, int closestOffset) {
+		TriangleBvh bvh = getBvh();
+		m_bvhInverse.apply(points, offset, closest, closestOffset);
+		int element = bvh.closestPoint(closest, closestOffset, closest, closestOffset);
+		m_bvhFrame.apply(closest, closestOffset, closest, closestOffset);
+		return element;
+	}
+
+	/**
+	 * @param closest Receives the closest point, may be null
+	 * @return The element that contains the closest point, -1 if the geometry has no triangles
+	 */
+	public int closestPoint(PdVector point, PdVector closest) {
+		double[] p = SCRATCH.get();
+		int element = closestPoint(point.m_data, 0, p, 0);
+		if (closest != null) {
+			closest.setEntry(0, p[0]);
+			closest.setEntry(1, p[1]);
+			closest.setEntry(2, p[2]);
+		}
+		return element;
+	}
+
+	/**
+	 * Builds the distance field used by lookupNearest and lookupClosestPoint, unless one with the same settings exists.
+	 * See DistanceField for the parameters.
+	 */
+	public synchronized void buildDistanceField(boolean surface, double resolution, double bandWidth, ForkJoinPool pool) {
+		if (m_field != null && m_field.matches(surface, resolution, bandWidth)) {
+			return;
+		}
+		if (surface) {
+			// Built here, the workers of the pool would block on the lock this thread holds
+			getBvh();
+		}
+		DistanceField field = new DistanceField(m_geometry.get(), this, surface, resolution, bandWidth, pool);
+		m_fieldFrame.setIdentity();
+		m_fieldInverse.setIdentity();
+		m_field = field;
+	}
+
+	/**
+	 * Like nearest, but answered in O(1) by the distance field of closest vertices where it covers the point.
+	 * The result is then the closest vertex of the centre of the cell of the point.
+	 */
+	public int lookupNearest(double x, double y, double z) {
+		DistanceField field = m_field;
+		if (field != null && !field.isSurface()) {
+			double[] p = SCRATCH.get();
+			p[0] = x;
+			p[1] = y;
+			p[2] = z;
+			m_fieldInverse.apply(p, 0, p, 0);
+			int index = field.lookup(p[0], p[1], p[2], p, 0);
+			if (index >= 0) {
+				return index;
+			}
+		}
+		return nearest(x, y, z);
+	}
+
+	/**
+	 * Like closestPoint, but answered in O(1) by the distance field of closest surface points where it covers the point.
+	 * The result is then the closest point of the centre of the cell of the point.
+	 */
+	public int lookupClosestPoint(double[] points, int offset, double[] closest, int closestOffset) {
+		DistanceField field = m_field;
+		if (field != null && field.isSurface()) {
+			m_fieldInverse.apply(points, offset, closest, closestOffset);
+			int element = field.lookup(closest[closestOffset], closest[closestOffset + 1], closest[closestOffset + 2], closest, closestOffset);
+			if (element >= 0) {
+				m_fieldFrame.apply(closest, closestOffset, closest, closestOffset);
+				return element;
+			}
+		}
+		return closestPoint(points, offset, closest, closestOffset);
+	}
+
+	private TriangleBvh getBvh() {
+		TriangleBvh bvh = m_bvh;
+		if (bvh == null) {
+			synchronized (this) {
+				if (m_bvh == null) {
+					m_bvhFrame.setIdentity();
+					m_bvhInverse.setIdentity();
+					m_bvh = new TriangleBvh(m_geometry.get());
+				}
+				bvh = m_bvh;
+			}
+		}
+		return bvh;
+	}
+}
@@ -1,19 +1,17 @@
 package workshop;
 
-import java.util.Stack;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
-import jv.geom.PgEdgeStar;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import jv.geom.PgElementSet;
 import jv.object.PsDebug;
 import jv.project.PgGeometry;
-import jv.vecmath.PdVector;
-import jv.vecmath.PiVector;
 import jvx.project.PjWorkshop;
 
 public class Topology extends PjWorkshop {
 
+	/** Number of half-edges merged by a single task of the parallel components */
+	private static final int COMPONENTS_GRAIN = 4096;
+	
 	PgElementSet m_geom;
 	PgElementSet m_geomSave;
 	
@@ -33,225 +31,117 @@ public class Topology extends PjWorkshop {
 		super.init();
 	}
 	
+	/**
+	 * @return The cached reports of the geometry, all queries go through it and only recompute after a change.
+	 *         Edits of the geometry in place are noticed by checksums, see GeometryReport.
+	 */
+	public GeometryReport getReport() {
+		return GeometryReport.get(m_geom);
+	}
+	
+	/**
+	 * @return The half-edges of the geometry, shared by all queries until its elements change
+	 */
+	public HalfEdgeMesh getHalfEdges() {
+		return getReport().getHalfEdges();
+	}
+	
 	public int calculateGenus() {
-		int v = m_geom.getNumVertices();
-		int e = m_geom.getNumEdges();
-		int f = m_geom.getNumElements();
-		// (V - E + F) = 2(1 - g)
-		int x = (int) (1.0 - ((v - e + f) / 2.0));
+		GeometryReport report = getReport();
+		HalfEdgeMesh mesh = report.getHalfEdges();
+		int v = mesh.getNumUsedVertices();
+		int e = mesh.getNumEdges();
+		int f = mesh.getNumElements();
+		int c = report.getComponents().m_count;
+		int b = report.getNumBoundaryLoops();
+		// Summed over the components: (V - E + F) = 2c - 2g - b
+		int x = report.getGenus();
 		
 		// Some debug output to verify the used numbers
-		PsDebug.warning("Vertices: " + v + ", Edges: " + e + ", Faces: " + f);
+		PsDebug.warning("Vertices: " + v + ", Edges: " + e + ", Faces: " + f + ", Components: " + c + ", Boundary loops: " + b);
 		
 		return x;
 	}
 	
+	/**
+	 * @return The signed volume enclosed by the faces, positive if they are oriented outwards
+	 */
 	public double calculateVolume() {
-		// Make sure we can calculate tetrahedrons
-		if (m_geom.getMaxDimOfElements() == 3) {
-			double total = 0;
-			// Make sure we have face normals
-			if (!m_geom.hasElementNormals())
-				m_geom.makeElementNormals();
-			
-			// Calculate volume for each face
-			for (int i = 0; i < m_geom.getNumElements(); i++) {
-				// Calculate volume
-				PiVector element = m_geom.getElement(i);
-				PdVector a = m_geom.getVertex(element.getEntry(0));
-				PdVector b = m_geom.getVertex(element.getEntry(1));
-				PdVector c = m_geom.getVertex(element.getEntry(2));
-				double vol = PdVector.crossNew(b, c).dot(a);
-				
-				// Find out if the face is facing towards or away from the origin
-				PdVector normal = m_geom.getElementNormal(i);
-				PdVector faceMid = new PdVector(
-						(a.getEntry(0) + b.getEntry(0) + b.getEntry(0)) / 3,
-						(a.getEntry(1) + b.getEntry(1) + b.getEntry(1)) / 3,
-						(a.getEntry(2) + b.getEntry(2) + b.getEntry(2)) / 3);
-				faceMid.normalize();
-				double angle = normal.dot(faceMid);
-				
-				// If facing away, it is a positive volume, else it is a negative volume
-				if (angle > 0) {
-					total += vol;
-				} else {
-					total -= vol;
-				}
-			}
-			// Some debug output to verify our own output
-			PsDebug.warning(m_geom.getVolume() +  "");
-			
-			// We still need to divide the volume by 6 to get the correct tetrahedron volume calculation 
-			return total / 6;
-		}
-		return - m_geom.getMaxDimOfElements();
+		double volume = getReport().getIntegrals().m_volume;
+		// Some debug output to verify our own output
+		PsDebug.warning(m_geom.getVolume() +  "");
+		return volume;
+	}
+	
+	/**
+	 * @param parallel If true the faces are summed on the common pool, with the same result
+	 * @return Volume, area, centroid and inertia tensor of the geometry, see MeshIntegrals
+	 */
+	public MeshIntegrals calculateIntegrals(boolean parallel) {
+		return new MeshIntegrals(m_geom, parallel ? ForkJoinPool.commonPool() : null);
 	}
 	
 	public int calculateComponents() {
-		/*PiVector[] neighbours = m_geom.getNeighbours();
-		boolean[] used = new boolean[neighbours.length];
-		
-		int comp = 0;
-		int next = -1;
-		while ((next = getFalse(used)) != -1) {
-			comp++;
-			used = dfs(neighbours, used, next);
-		}
-		
-		return comp;*/
-		
-		// Get neighbour information
-		PiVector[] neighbours = m_geom.getNeighbours();
-		
-		// Track which faces we have visitied
-		boolean[] used = new boolean[neighbours.length];
-		
-		int comp = 0;
-		int next = -1;
-		// As long as we haven't visited every face, find connected components
-		while ((next = getFalse(used)) != -1) {
-			comp++;
-			Stack<Integer> todo = new Stack<Integer>(); 
-			todo.push(next);
-			
-			// Depth First Search
-			while (!todo.isEmpty()) {
-				int x = todo.pop();
-				if (!used[x]) {
-					used[x] = true;
-					for (int index : neighbours[x].getEntries()) {
-						if (index >= 0)
-							todo.push(index);
-					}
-				}
-			}
-		}
-		
-		return comp;
+		return getReport().getComponents().m_count;
 	}
 	
-	public String calculateLoops() {
-		try {
-			PgEdgeStar[] edge_list = m_geom.makeEdgeStars();
-//			PsDebug.message("number of edges in total: " + edge_list.length);
-			HashMap<Integer, PgEdgeStar> edge_map = getBoundaryEdges(edge_list);
-//			PsDebug.message("number of boundary edges: " + edge_map.size());
-			HashMap<Integer, ArrayList<Integer>> vertex_map = getBoundaryVertices(edge_map);
-//			PsDebug.message("number of boundary vertices: " + vertex_map.size());
-			int boundary_loop_count = 0;
-			
-			/*
-			 * Algorithm idea:
-			 * 1) Find all edges that are part of only 1 face
-			 * 2) While we have such edges, pick one, increase boundary loop count
-			 * 3) Traverse the boundary,finding the next edge via their shared vertex
-			 */
-			
-			// Because edges with 1 neighbour still list a second neighbour with ID 0, 
-			// we need to filter out the edges that ACTUALLY have face 0 as a neighbour
-			try {
-				PiVector dontcare = m_geom.getElement(0);
-				boundary_loop_count --;
-			} catch(NullPointerException E){}
-			
-			while(vertex_map.size() > 0){
-				//If there is n entry, there is a yet unhandled boundary loop
-				boundary_loop_count ++;
-				Set<Integer> keys = vertex_map.keySet();
-				int vertex_id  = keys.iterator().next();
-				while(vertex_map.containsKey(vertex_id) && vertex_map.get(vertex_id).size() > 0){
-					//Traverse the boundary, removing all vertices belonging to it
-					int edge_id = vertex_map.get(vertex_id).get(0);
-					PgEdgeStar edge = edge_map.get(edge_id);
-					int other_vertex_id = getOtherVertex(edge, vertex_id);
-					//remove edge from both vertices
-					vertex_map.get(vertex_id).remove(vertex_map.get(vertex_id).indexOf(edge_id));
-					vertex_map.get(other_vertex_id).remove(vertex_map.get(other_vertex_id).indexOf(edge_id));
-					//remove vertex if edge list is empty
-					if(vertex_map.get(vertex_id).size() == 0)
-						vertex_map.remove(vertex_id);
-					if(vertex_map.get(other_vertex_id).size() == 0)
-						vertex_map.remove(other_vertex_id);
-					vertex_id = other_vertex_id;
-				}
-			}
-			return boundary_loop_count + " boundary loops";
-		} catch(Exception E){
-			StackTraceElement[] stacktrace = E.getStackTrace();
-			for (StackTraceElement elem : stacktrace)
-				PsDebug.message(elem.toString());
-			PsDebug.warning(E.toString());
-		}
-		return "-1";
+	/**
+	 * Finds the connected components of the faces, where two faces are connected if they share an edge,
+	 * by a union-find over the half-edges in O(F).
+	 * @param parallel If true the faces are merged concurrently on the common pool
+	 * @param labels If true the result also has the component of every face and the size of every component
+	 */
+	public Components findComponents(boolean parallel, boolean labels) {
+		return findComponents(getHalfEdges(), parallel ? ForkJoinPool.commonPool() : null, labels);
 	}
 	
-	private int getOtherVertex(PgEdgeStar edge, int vertex_id){
-		int v_id = edge.getVertexInd(0);
-		if (v_id == vertex_id)
-			v_id = edge.getVertexInd(1);
-		return v_id;
+	/**
+	 * @param pool The pool to merge the faces on, may be null
+	 */
+	public static Components findComponents(HalfEdgeMesh mesh, ForkJoinPool pool, boolean labels) {
+		DisjointSet faces = mesh.connectElements(pool, COMPONENTS_GRAIN);
+		
+		if (!labels)
+			return new Components(faces.label(null), null, null);
+		int[] faceLabels = new int[mesh.getNumElements()];
+		int count = faces.label(faceLabels);
+		return new Components(count, faceLabels, DisjointSet.sizes(faceLabels, count));
 	}
 	
-	private HashMap<Integer, PgEdgeStar> getBoundaryEdges(PgEdgeStar[] edge_list){
-		HashMap<Integer, PgEdgeStar> edge_map = new HashMap<Integer, PgEdgeStar>();
-		for (int i = 0; i < edge_list.length; i++){
-			int[] elem_inds = edge_list[i].getElementInd();
-			// Edges with only 1 neighbouring face will still have a neighbour list of size 2, but with one of the values set to 0
-			if (elem_inds[0] == 0 || elem_inds[1] == 0) {
-				edge_map.put(i, edge_list[i]);
-			}
+	/** The connected components of the faces */
+	public static class Components {
+		public final int m_count;
+		/** The component of every face, numbered in the order of their first face, null if not requested */
+		public final int[] m_labels;
+		/** The number of faces of every component, null if not requested */
+		public final int[] m_sizes;
+		
+		Components(int count, int[] labels, int[] sizes) {
+			m_count = count;
+			m_labels = labels;
+			m_sizes = sizes;
 		}
-		return edge_map;
 	}
 	
-	private HashMap<Integer, ArrayList<Integer>> getBoundaryVertices(HashMap<Integer, PgEdgeStar> edge_map){
-		HashMap<Integer, ArrayList<Integer>> vertex_map = new HashMap<Integer, ArrayList<Integer>>();
-		Set<Integer> keys = edge_map.keySet();
-		for (int key : keys){
-			PgEdgeStar edge = edge_map.get(key);
-			// Register edge to the first vertex
-			if (vertex_map.containsKey(edge.getVertexInd(0))){
-				assert(vertex_map.get(edge.getVertexInd(0)).size() == 1);
-				vertex_map.get(edge.getVertexInd(0)).add(key);
-			}
-			else{
-				ArrayList<Integer> edge_id_list = new ArrayList<Integer>();
-				edge_id_list.add(key);
-				vertex_map.put(edge.getVertexInd(0), edge_id_list);
-			}
-			// Register edge to the second vertex
-			if (vertex_map.containsKey(edge.getVertexInd(1))){
-				assert(vertex_map.get(edge.getVertexInd(1)).size() == 1);
-				vertex_map.get(edge.getVertexInd(1)).add(key);
-			}
-			else{
-				ArrayList<Integer> edge_id_list = new ArrayList<Integer>();
-				edge_id_list.add(key);
-				vertex_map.put(edge.getVertexInd(1), edge_id_list);
-			}
-		}
-		return vertex_map;
+	public String calculateLoops() {
+		List<HalfEdgeMesh.BoundaryLoop> loops = getBoundaryLoops();
+		double perimeter = 0;
+		for (HalfEdgeMesh.BoundaryLoop loop : loops)
+			perimeter += loop.m_perimeter;
+		return loops.size() + " boundary loops, perimeter " + String.format("%.4g", perimeter);
 	}
 	
-	private int getFalse(boolean[] input) {
-		for (int i = 0; i< input.length; i++) {
-			if (!input[i]) {
-				return i;
-			}
-		}
-		return -1;
+	/**
+	 * @return Every boundary loop as ordered vertices with its number of edges and perimeter, see HalfEdgeMesh.getBoundaryLoops
+	 */
+	public List<HalfEdgeMesh.BoundaryLoop> getBoundaryLoops() {
+		return getReport().getBoundaryLoops();
 	}
 	
-	// No longer used. The non-recursive depth first search is faster.
-	private boolean[] dfs(PiVector[] neighbours, boolean[] used, int next) {
-		used[next] = true;
-		for (int i = 0; i < 3; i++) {
-			if (neighbours[next].m_data[i] != -1 && !used[neighbours[next].m_data[i]]) {
-				used = dfs(neighbours, used, neighbours[next].m_data[i]);
-			}
-		}
-		
-		return used;
+	/**
+	 * @return Whether every edge has at most two faces and the faces around every vertex form a single fan
+	 */
+	public HalfEdgeMesh.Manifoldness checkManifold() {
+		return getReport().getManifoldness();
 	}
 }
@@ -1,12 +1,18 @@
 package workshop;
 
 import java.awt.Button;
+import java.awt.Container;
+import java.awt.EventQueue;
+import java.awt.FileDialog;
 import java.awt.FlowLayout;
+import java.awt.Frame;
 import java.awt.GridLayout;
 import java.awt.Label;
 import java.awt.Panel;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 
 import jv.object.PsDialog;
 import jv.object.PsUpdateIf;
@@ -18,11 +24,15 @@ public class Topology_IP extends PjWorkshop_IP implements ActionListener {
 	protected Button btnVolume;
 	protected Button btnComponents;
 	protected Button btnLoops;
+	protected Button btnManifold;
+	protected Button btnFile;
 	
 	protected Label lblGenus;
 	protected Label lblVolume;
 	protected Label lblComponents;
 	protected Label lblLoops;
+	protected Label lblManifold;
+	protected Label lblFile;
 	
 	Topology m_ws;
 	
@@ -51,13 +61,19 @@ public class Topology_IP extends PjWorkshop_IP implements ActionListener {
 		btnComponents.addActionListener(this);
 		btnLoops = new Button("Calculate Boundary Loops");
 		btnLoops.addActionListener(this);
+		btnManifold = new Button("Check Manifold");
+		btnManifold.addActionListener(this);
+		btnFile = new Button("Analyse Mesh File");
+		btnFile.addActionListener(this);
 		
 		lblGenus = new Label();
 		lblVolume = new Label();
 		lblComponents = new Label();
 		lblLoops = new Label();
+		lblManifold = new Label();
+		lblFile = new Label();
 		
-		Panel panel1 = new Panel(new GridLayout(4, 2));
+		Panel panel1 = new Panel(new GridLayout(6, 2));
 		panel1.add(btnGenus);
 		panel1.add(lblGenus);
 		panel1.add(btnVolume);
@@ -66,6 +82,10 @@ public class Topology_IP extends PjWorkshop_IP implements ActionListener {
 		panel1.add(lblComponents);
 		panel1.add(btnLoops);
 		panel1.add(lblLoops);
+		panel1.add(btnManifold);
+		panel1.add(lblManifold);
+		panel1.add(btnFile);
+		panel1.add(lblFile);
 		add(panel1);
 		
 		validate();
@@ -83,12 +103,16 @@ public class Topology_IP extends PjWorkshop_IP implements ActionListener {
 			return;
 		} else if (source == btnVolume) {
 			lblVolume.setText("...");
-			lblVolume.setText(m_ws.calculateVolume() + "");
+			lblVolume.setText(m_ws.getReport().getIntegrals().toString());
 			m_ws.m_geom.update(m_ws.m_geom);
 			return;
 		} else if (source == btnComponents) {
 			lblComponents.setText("...");
-			lblComponents.setText(m_ws.calculateComponents() + "");
+			Topology.Components components = m_ws.getReport().getComponents();
+			int largest = 0;
+			for (int size : components.m_sizes)
+				largest = Math.max(largest, size);
+			lblComponents.setText(components.m_count + " (largest " + largest + " faces)");
 			m_ws.m_geom.update(m_ws.m_geom);
 			return;
 		} else if (source == btnLoops) {
@@ -97,8 +121,47 @@ public class Topology_IP extends PjWorkshop_IP implements ActionListener {
 //			lblLoops.setText("post");
 			m_ws.m_geom.update(m_ws.m_geom);
 			return;
+		} else if (source == btnManifold) {
+			lblManifold.setText(m_ws.checkManifold().toString());
+			return;
+		} else if (source == btnFile) {
+			analyseFile();
+			return;
 		}
 	}
+	
+	/**
+	 * Streams the topology of a mesh file that is too large to load, on a worker thread, see StreamingTopology.
+	 */
+	private void analyseFile() {
+		Frame frame = null;
+		for (Container parent = getParent(); parent != null && frame == null; parent = parent.getParent())
+			if (parent instanceof Frame)
+				frame = (Frame)parent;
+		FileDialog dialog = new FileDialog(frame, "Analyse Mesh File (.obj, .ply, .raw or .bin)", FileDialog.LOAD);
+		dialog.setVisible(true);
+		if (dialog.getFile() == null)
+			return;
+		File file = new File(dialog.getDirectory(), dialog.getFile());
+		btnFile.setEnabled(false);
+		lblFile.setText("...");
+		Thread thread = new Thread(() -> {
+			String message = "Failed";
+			try {
+				message = new StreamingTopology().analyse(file).toString();
+			} catch (IOException | RuntimeException e) {
+				message = "Failed: " + e.getMessage();
+			} finally {
+				// Also after an error, or the button stays disabled
+				String text = message;
+				EventQueue.invokeLater(() -> {
+					lblFile.setText(text);
+					btnFile.setEnabled(true);
+				});
+			}
+		}, "Streaming topology");
+		thread.start();
+	}
 	/**
 	 * Get information which bottom buttons a dialog should create
 	 * when showing this info panel.
@@ -0,0 +1,384 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+import jv.vecmath.PiVector;
+
+/**
+ * Bounding volume hierarchy over the elements of a PgElementSet, answering closest point on surface queries.
+ * Polygons are split into a fan of triangles, every triangle remembers the element it came from.
+ * The hierarchy keeps its own copy of the vertices, so it has to be rebuilt when the mesh moves.
+ */
+public class TriangleBvh {
+
+	/** Nodes with at most this many triangles are not split. */
+	private static final int LEAF_SIZE = 4;
+
+	/** Vertex coordinates, xyz interleaved */
+	private final double[] m_vertices;
+	/** Three vertex indices per triangle, in leaf order */
+	private final int[] m_triangles;
+	/** The element every triangle belongs to, in leaf order */
+	private final int[] m_elements;
+
+	/** Bounding box per node: min xyz followed by max xyz */
+	private double[] m_bounds;
+	/** For inner nodes the index of the second child (the first child directly follows its parent), -1 for leaves */
+	private int[] m_right;
+	/** First triangle and number of triangles of a leaf */
+	private int[] m_start;
+	private int[] m_count;
+	private int m_numNodes;
+	/** Query state per thread, so queries do not allocate */
+	private static final ThreadLocal<Query> QUERY = ThreadLocal.withInitial(Query::new);
+
+	/**
+	 * Builds the hierarchy over all elements of the mesh, O(n log n).
+	 */
+	public TriangleBvh(PgElementSet mesh) {
+		PdVector[] vertices = mesh.getVertices();
+		m_vertices = new double[vertices.length * 3];
+		for (int i = 0; i < vertices.length; i++) {
+			m_vertices[i * 3] = vertices[i].getEntry(0);
+			m_vertices[i * 3 + 1] = vertices[i].getEntry(1);
+			m_vertices[i * 3 + 2] = vertices[i].getEntry(2);
+		}
+
+		PiVector[] elements = mesh.getElements();
+		int numTriangles = 0;
+		for (int i = 0; i < elements.length; i++) {
+			numTriangles += Math.max(0, elements[i].getSize() - 2);
+		}
+		m_triangles = new int[numTriangles * 3];
+		m_elements = new int[numTriangles];
+		int t = 0;
+		for (int i = 0; i < elements.length; i++) {
+			int[] element = elements[i].getEntries();
+			for (int j = 1; j + 1 < elements[i].getSize(); j++) {
+				m_triangles[t * 3] = element[0];
+				m_triangles[t * 3 + 1] = element[j];
+				m_triangles[t * 3 + 2] = element[j + 1];
+				m_elements[t] = i;
+				t++;
+			}
+		}
+
+		// A binary tree with leaves of at least one triangle has less than 2n nodes
+		int maxNodes = Math.max(1, 2 * numTriangles);
+		m_bounds = new double[maxNodes * 6];
+		m_right = new int[maxNodes];
+		m_start = new int[maxNodes];
+		m_count = new int[maxNodes];
+		double[] centroids = new double[numTriangles * 3];
+		for (int i = 0; i < numTriangles; i++) {
+			for (int a = 0; a < 3; a++) {
+				centroids[i * 3 + a] = (vertex(i, 0, a) + vertex(i, 1, a) + vertex(i, 2, a)) / 3.0;
+			}
+		}
+		m_numNodes = 0;
+		build(0, numTriangles, centroids);
+	}
+
+	/**
+	 * @return The number of triangles in the hierarchy
+	 */
+	public int getNumTriangles() {
+		return m_elements.length;
+	}
+
+	/**
+	 * Finds the closest point on the surface. Safe to call from multiple threads.
+	 * @param point The query point
+	 * @param closest Receives the closest point on the surface, may be null
+	 * @return The index of the element that contains the closest point, -1 if the mesh has no triangles
+	 */
+	public int closestPoint(PdVector point, PdVector closest) {
+		Query query = QUERY.get();
+		query.reset(point.getEntry(0), point.getEntry(1), point.getEntry(2));
+		search(query);
+		if (query.bestTriangle < 0) {
+			return -1;
+		}
+		if (closest != null) {
+			closest.setEntry(0, query.bestPoint[0]);
+			closest.setEntry(1, query.bestPoint[1]);
+			closest.setEntry(2, query.bestPoint[2]);
+		}
+		return m_elements[query.bestTriangle];
+	}
+
+	/**
+	 * Same as closestPoint(PdVector, PdVector) on xyz interleaved buffers.
+	 * @param points The query points
+	 * @param offset Offset of the query point in points
+	 * @param closest Receives the closest point at closestOffset
+	 * @return The index of the element that contains the closest point, -1 if the mesh has no triangles
+	 */
+	public int closestPoint(double[] points, int offset, double[] closest, int closestOffset) {
+		Query query = QUERY.get();
+		query.reset(points[offset], points[offset + 1], points[offset + 2]);
+		search(query);
+		if (query.bestTriangle < 0) {
+			return -1;
+		}
+		System.arraycopy(query.bestPoint, 0, closest, closestOffset, 3);
+		return m_elements[query.bestTriangle];
+	}
+
+	/**
+	 * @return The distance of the point to the surface, Double.MAX_VALUE if the mesh has no triangles
+	 */
+	public double distance(PdVector point) {
+		Query query = QUERY.get();
+		query.reset(point.getEntry(0), point.getEntry(1), point.getEntry(2));
+		search(query);
+		return query.bestTriangle < 0 ? Double.MAX_VALUE : Math.sqrt(query.bestDistSq);
+	}
+
+	private double vertex(int triangle, int corner, int axis) {
+		return m_vertices[m_triangles[triangle * 3 + corner] * 3 + axis];
+	}
+
+	/**
+	 * Creates the node for the triangles [lo, hi), splitting at the median centroid along the widest axis.
+	 * @return The index of the node
+	 */
+	private int build(int lo, int hi, double[] centroids) {
+		int node = m_numNodes++;
+		double[] cMin = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		double[] cMax = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (int a = 0; a < 3; a++) {
+			m_bounds[node * 6 + a] = Double.MAX_VALUE;
+			m_bounds[node * 6 + 3 + a] = -Double.MAX_VALUE;
+		}
+		for (int i = lo; i < hi; i++) {
+			for (int a = 0; a < 3; a++) {
+				for (int c = 0; c < 3; c++) {
+					double v = vertex(i, c, a);
+					if (v < m_bounds[node * 6 + a]) m_bounds[node * 6 + a] = v;
+					if (v > m_bounds[node * 6 + 3 + a]) m_bounds[node * 6 + 3 + a] = v;
+				}
+				double centroid = centroids[i * 3 + a];
+				if (centroid < cMin[a]) cMin[a] = centroid;
+				if (centroid > cMax[a]) cMax[a] = centroid;
+			}
+		}
+
+		if (hi - lo <= LEAF_SIZE) {
+			m_right[node] = -1;
+			m_start[node] = lo;
+			m_count[node] = hi - lo;
+			return node;
+		}
+
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (cMax[a] - cMin[a] > cMax[axis] - cMin[axis]) {
+				axis = a;
+			}
+		}
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, axis, centroids);
+
+		build(lo, mid, centroids);
+		m_right[node] = build(mid, hi, centroids);
+		return node;
+	}
+
+	/** Quickselect on the triangle centroids, moves the k-th smallest along the axis to slot k. */
+	private void select(int left, int right, int k, int axis, double[] centroids) {
+		while (right > left) {
+			int mid = (left + right) >>> 1;
+			if (centroids[mid * 3 + axis] < centroids[left * 3 + axis]) swap(mid, left, centroids);
+			if (centroids[right * 3 + axis] < centroids[left * 3 + axis]) swap(right, left, centroids);
+			if (centroids[right * 3 + axis] < centroids[mid * 3 + axis]) swap(right, mid, centroids);
+			double pivot = centroids[mid * 3 + axis];
+
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (centroids[i * 3 + axis] < pivot) i++;
+				while (centroids[j * 3 + axis] > pivot) j--;
+				if (i <= j) {
+					swap(i, j, centroids);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int a, int b, double[] centroids) {
+		for (int c = 0; c < 3; c++) {
+			double tmpCentroid = centroids[a * 3 + c];
+			centroids[a * 3 + c] = centroids[b * 3 + c];
+			centroids[b * 3 + c] = tmpCentroid;
+			int tmpVertex = m_triangles[a * 3 + c];
+			m_triangles[a * 3 + c] = m_triangles[b * 3 + c];
+			m_triangles[b * 3 + c] = tmpVertex;
+		}
+		int tmp = m_elements[a];
+		m_elements[a] = m_elements[b];
+		m_elements[b] = tmp;
+	}
+
+	/**
+	 * @return The squared distance of the query point to the bounding box of the node
+	 */
+	private double boxDistSq(int node, Query query) {
+		double distSq = 0;
+		for (int a = 0; a < 3; a++) {
+			double c = query.p[a];
+			double min = m_bounds[node * 6 + a];
+			double max = m_bounds[node * 6 + 3 + a];
+			if (c < min) {
+				distSq += (min - c) * (min - c);
+			} else if (c > max) {
+				distSq += (c - max) * (c - max);
+			}
+		}
+		return distSq;
+	}
+
+	private void search(Query query) {
+		if (m_elements.length == 0) {
+			return;
+		}
+		searchNode(0, boxDistSq(0, query), query);
+	}
+
+	private void searchNode(int node, double nodeDistSq, Query query) {
+		if (nodeDistSq >= query.bestDistSq) {
+			return;
+		}
+		if (m_right[node] < 0) {
+			for (int t = m_start[node]; t < m_start[node] + m_count[node]; t++) {
+				query.offer(t, this);
+			}
+			return;
+		}
+		// Visit the nearer child first, so the farther one is more likely to be pruned
+		int left = node + 1;
+		int right = m_right[node];
+		double leftDistSq = boxDistSq(left, query);
+		double rightDistSq = boxDistSq(right, query);
+		if (leftDistSq <= rightDistSq) {
+			searchNode(left, leftDistSq, query);
+			searchNode(right, rightDistSq, query);
+		} else {
+			searchNode(right, rightDistSq, query);
+			searchNode(left, leftDistSq, query);
+		}
+	}
+
+	/** State of a single closest point query */
+	private static final class Query {
+		final double[] p = new double[3];
+		final double[] candidate = new double[3];
+		final double[] bestPoint = new double[3];
+		int bestTriangle;
+		double bestDistSq;
+
+		void reset(double x, double y, double z) {
+			p[0] = x;
+			p[1] = y;
+			p[2] = z;
+			bestTriangle = -1;
+			bestDistSq = Double.MAX_VALUE;
+		}
+
+		void offer(int triangle, TriangleBvh bvh) {
+			closestPointOnTriangle(bvh, triangle, p, candidate);
+			double dx = candidate[0] - p[0];
+			double dy = candidate[1] - p[1];
+			double dz = candidate[2] - p[2];
+			double distSq = dx * dx + dy * dy + dz * dz;
+			if (distSq < bestDistSq) {
+				bestDistSq = distSq;
+				bestTriangle = triangle;
+				bestPoint[0] = candidate[0];
+				bestPoint[1] = candidate[1];
+				bestPoint[2] = candidate[2];
+			}
+		}
+	}
+
+	/**
+	 * Closest point on a triangle by Voronoi region classification (Ericson, Real-Time Collision Detection 5.1.5).
+	 */
+	private static void closestPointOnTriangle(TriangleBvh bvh, int triangle, double[] p, double[] result) {
+		double ax = bvh.vertex(triangle, 0, 0), ay = bvh.vertex(triangle, 0, 1), az = bvh.vertex(triangle, 0, 2);
+		double bx = bvh.vertex(triangle, 1, 0), by = bvh.vertex(triangle, 1, 1), bz = bvh.vertex(triangle, 1, 2);
+		double cx = bvh.vertex(triangle, 2, 0), cy = bvh.vertex(triangle, 2, 1), cz = bvh.vertex(triangle, 2, 2);
+
+		double abx = bx - ax, aby = by - ay, abz = bz - az;
+		double acx = cx - ax, acy = cy - ay, acz = cz - az;
+		double apx = p[0] - ax, apy = p[1] - ay, apz = p[2] - az;
+		double d1 = abx * apx + aby * apy + abz * apz;
+		double d2 = acx * apx + acy * apy + acz * apz;
+		if (d1 <= 0 && d2 <= 0) {
+			set(result, ax, ay, az);
+			return;
+		}
+
+		double bpx = p[0] - bx, bpy = p[1] - by, bpz = p[2] - bz;
+		double d3 = abx * bpx + aby * bpy + abz * bpz;
+		double d4 = acx * bpx + acy * bpy + acz * bpz;
+		if (d3 >= 0 && d4 <= d3) {
+			set(result, bx, by, bz);
+			return;
+		}
+
+		double vc = d1 * d4 - d3 * d2;
+		if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+			double v = d1 / (d1 - d3);
+			set(result, ax + v * abx, ay + v * aby, az + v * abz);
+			return;
+		}
+
+		double cpx = p[0] - cx, cpy = p[1] - cy, cpz = p[2] - cz;
+		double d5 = abx * cpx + aby * cpy + abz * cpz;
+		double d6 = acx * cpx + acy * cpy + acz * cpz;
+		if (d6 >= 0 && d5 <= d6) {
+			set(result, cx, cy, cz);
+			return;
+		}
+
+		double vb = d5 * d2 - d1 * d6;
+		if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+			double w = d2 / (d2 - d6);
+			set(result, ax + w * acx, ay + w * acy, az + w * acz);
+			return;
+		}
+
+		double va = d3 * d6 - d5 * d4;
+		if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+			double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+			set(result, bx + w * (cx - bx), by + w * (cy - by), bz + w * (cz - bz));
+			return;
+		}
+
+		double denom = va + vb + vc;
+		if (denom == 0) {
+			// Degenerate triangle, all edge regions were rejected by rounding
+			set(result, ax, ay, az);
+			return;
+		}
+		double v = vb / denom;
+		double w = vc / denom;
+		set(result, ax + abx * v + acx * w, ay + aby * v + acy * w, az + abz * v + acz * w);
+	}
+
+	private static void set(double[] result, double x, double y, double z) {
+		result[0] = x;
+		result[1] = y;
+		result[2] = z;
+	}
+}
@@ -0,0 +1,96 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PiVector;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The neighbours of every vertex along the edges of the elements, in compressed rows:
+ * the neighbours of vertex v are m_neighbours[m_offsets[v]] up to m_neighbours[m_offsets[v + 1]], sorted and distinct.
+ * Only depends on the elements, so a rigid motion of the vertices keeps it valid. Shared through a cache keyed
+ * by the identity of the geometry, which rebuilds an entry when the number of vertices or elements has changed.
+ */
+public class VertexAdjacency {
+
+	private static final Map<PgElementSet, VertexAdjacency> CACHE = new WeakHashMap<>();
+
+	final int[] m_offsets;
+	final int[] m_neighbours;
+	private final int m_numElements;
+
+	private VertexAdjacency(PgElementSet geometry) {
+		int numVertices = geometry.getVertices().length;
+		PiVector[] elements = geometry.getElements();
+		m_numElements = (elements == null) ? 0 : elements.length;
+
+		// Every edge of an element in both directions, shared edges twice
+		int[] start = new int[numVertices + 1];
+		for (int e = 0; e < m_numElements; e++) {
+			int[] v = elements[e].getEntries();
+			int size = elements[e].getSize();
+			for (int j = 0; j < size; j++) {
+				start[v[j] + 1]++;
+				start[v[(j + 1) % size] + 1]++;
+			}
+		}
+		for (int i = 0; i < numVertices; i++) {
+			start[i + 1] += start[i];
+		}
+		int[] fill = Arrays.copyOf(start, numVertices);
+		int[] all = new int[start[numVertices]];
+		for (int e = 0; e < m_numElements; e++) {
+			int[] v = elements[e].getEntries();
+			int size = elements[e].getSize();
+			for (int j = 0; j < size; j++) {
+				int a = v[j], b = v[(j + 1) % size];
+				all[fill[a]++] = b;
+				all[fill[b]++] = a;
+			}
+		}
+
+		// Sort every row and drop the duplicates in place
+		m_offsets = new int[numVertices + 1];
+		int count = 0;
+		for (int i = 0; i < numVertices; i++) {
+			Arrays.sort(all, start[i], start[i + 1]);
+			m_offsets[i] = count;
+			for (int j = start[i]; j < start[i + 1]; j++) {
+				if (j == start[i] || all[j] != all[j - 1]) {
+					all[count++] = all[j];
+				}
+			}
+		}
+		m_offsets[numVertices] = count;
+		m_neighbours = Arrays.copyOf(all, count);
+	}
+
+	/**
+	 * @return The cached adjacency of the geometry, built if there is none or the geometry has changed size
+	 */
+	public static VertexAdjacency get(PgElementSet geometry) {
+		synchronized (CACHE) {
+			VertexAdjacency adjacency = CACHE.get(geometry);
+			PiVector[] elements = geometry.getElements();
+			if (adjacency == null || adjacency.size() != geometry.getVertices().length
+					|| adjacency.m_numElements != ((elements == null) ? 0 : elements.length)) {
+				adjacency = new VertexAdjacency(geometry);
+				CACHE.put(geometry, adjacency);
+			}
+			return adjacency;
+		}
+	}
+
+	/**
+	 * @return The number of vertices
+	 */
+	public int size() {
+		return m_offsets.length - 1;
+	}
+
+	public int degree(int vertex) {
+		return m_offsets[vertex + 1] - m_offsets[vertex];
+	}
+}
@@ -11,6 +11,8 @@ import jvx.numeric.PnBiconjugateGradient;
 import jvx.numeric.PnSparseMatrix;
 import jvx.project.PjWorkshop;
 
+import java.util.concurrent.ForkJoinPool;
+
 public class ShapeDeformation extends PjWorkshop {
     PgElementSet m_geom;
     PgElementSet m_geomSave;
@@ -30,6 +32,18 @@ public class ShapeDeformation extends PjWorkshop {
         m_geom 		= (PgElementSet)super.m_geom;
         m_geomSave 	= (PgElementSet)super.m_geomSave;
     }
+
+    /**
+     * Checks the mesh before the solver runs on it, see MeshValidator.
+     * @return True for a valid triangle mesh, otherwise the problems are reported and nothing should be solved
+     */
+    protected boolean validateMesh() {
+        MeshValidator.Report report = MeshValidator.validate(m_geom, ForkJoinPool.commonPool());
+        if (report.isValid() && report.isTriangleMesh())
+            return true;
+        PsDebug.warning("Not solving on an invalid mesh: " + report);
+        return false;
+    }
     
     /**
      * Get the M_v matrix for the current mesh
@@ -61,6 +75,8 @@ public class ShapeDeformation extends PjWorkshop {
     }
     
     public void deformSelected(PdMatrix deformMatrix) {
+        if (!validateMesh())
+            return;
         PnSparseMatrix matrixG = meshToGradient();
         PnSparseMatrix MatrixGTranspose = PnSparseMatrix.transposeNew(matrixG);
         PnSparseMatrix matrixM = getM();
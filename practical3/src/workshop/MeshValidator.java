@@ -0,0 +1,466 @@
+package workshop;
+
+import jv.geom.PgElementSet;
+import jv.vecmath.PdVector;
+import jv.vecmath.PiVector;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks whether a PgElementSet is a valid manifold mesh, so the solvers can refuse input they would silently
+ * get wrong. Reports, with their indices:
+ * - non-manifold edges, with more than two faces
+ * - non-manifold vertices, whose faces form more than one fan
+ * - edges whose two faces have opposite orientation
+ * - degenerate faces: fewer than three vertices, a repeated or missing vertex, or no area up to rounding
+ * - duplicate faces, on the same vertices as an earlier face
+ * - isolated vertices, without a face
+ * The half-edges are sorted into buckets by vertex and every bucket by the vertex at the other end, so every edge
+ * is met as a run of its half-edges in a single sweep over the buckets; the edges of two faces also join the corners
+ * of their vertex into fans. Faces with fewer than three distinct valid vertices are only reported as degenerate
+ * and left out of the sweep. The buckets are swept in parallel on large meshes, with the same result.
+ */
+public class MeshValidator {
+
+	/** Vertices swept, or faces checked, by one task */
+	private static final int GRAIN = 4096;
+	/** Faces whose squared normal is below this times the fourth power of their longest edge have no area */
+	private static final double DEGENERATE = 1e-24;
+
+	/** Results per face of the first pass */
+	private static final byte FACE_VALID = 0;
+	/** Not swept */
+	private static final byte FACE_INVALID = 1;
+	/** Swept, but reported as degenerate */
+	private static final byte FACE_NO_AREA = 2;
+	private static final byte FACE_DUPLICATE = 3;
+
+	private MeshValidator() {
+	}
+
+	/**
+	 * @return A hash of the sizes and vertex indices of all elements, changes if the connectivity changes
+	 */
+	public static long checksum(PiVector[] elements) {
+		long hash = 0;
+		if (elements == null) {
+			return hash;
+		}
+		for (PiVector element : elements) {
+			int size = element.getSize();
+			hash = mix(hash, size);
+			for (int i = 0; i < size; i++) {
+				hash = mix(hash, element.getEntry(i));
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, long value) {
+		// Order dependent, so swapped entries change the hash too
+		return Long.rotateLeft(hash ^ value, 27) * 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * @param pool The pool to sweep on, may be null
+	 */
+	public static Report validate(PgElementSet geometry, ForkJoinPool pool) {
+		PdVector[] vertices = geometry.getVertices();
+		PiVector[] elements = geometry.getElements();
+		int numVertices = vertices.length;
+		int numElements = (elements == null) ? 0 : elements.length;
+
+		byte[] faces = new byte[numElements];
+		ParallelRange.forEach(pool, numElements, GRAIN, (lo, hi) -> {
+			for (int f = lo; f < hi; f++) {
+				faces[f] = checkFace(elements[f], vertices);
+			}
+		});
+
+		// Bucket the corners of the valid faces by vertex, with the previous and next vertex of their face
+		int[] start = new int[numVertices + 1];
+		int numPolygons = 0;
+		for (int f = 0; f < numElements; f++) {
+			if (elements[f].getSize() > 3) {
+				numPolygons++;
+			}
+			if (faces[f] != FACE_INVALID) {
+				int[] v = elements[f].getEntries();
+				for (int j = 0; j < elements[f].getSize(); j++) {
+					start[v[j] + 1]++;
+				}
+			}
+		}
+		for (int v = 0; v < numVertices; v++) {
+			start[v + 1] += start[v];
+		}
+		int[] prev = new int[start[numVertices]];
+		int[] next = new int[prev.length];
+		int[] face = new int[prev.length];
+		int[] fill = Arrays.copyOf(start, numVertices);
+		for (int f = 0; f < numElements; f++) {
+			if (faces[f] == FACE_INVALID) {
+				continue;
+			}
+			int[] v = elements[f].getEntries();
+			int size = elements[f].getSize();
+			for (int j = 0; j < size; j++) {
+				int corner = fill[v[j]]++;
+				prev[corner] = v[(j + size - 1) % size];
+				next[corner] = v[(j + 1) % size];
+				face[corner] = f;
+			}
+		}
+
+		int numBlocks = (numVertices + GRAIN - 1) / GRAIN;
+		Sweep[] sweeps = new Sweep[numBlocks];
+		ParallelRange.forEach(pool, numBlocks, 1, (lo, hi) -> {
+			for (int block = lo; block < hi; block++) {
+				Sweep sweep = new Sweep(elements, start, prev, next, face, faces);
+				for (int v = block * GRAIN; v < Math.min(numVertices, (block + 1) * GRAIN); v++) {
+					sweep.vertex(v);
+				}
+				sweeps[block] = sweep;
+			}
+		});
+
+		// In the order of the vertices and faces, whatever the pool
+		IntList nonManifoldEdges = new IntList();
+		IntList nonManifoldVertices = new IntList();
+		IntList inconsistentEdges = new IntList();
+		IntList isolatedVertices = new IntList();
+		long numEdges = 0;
+		long numBoundaryEdges = 0;
+		for (Sweep sweep : sweeps) {
+			nonManifoldEdges.addAll(sweep.m_nonManifoldEdges);
+			nonManifoldVertices.addAll(sweep.m_nonManifoldVertices);
+			inconsistentEdges.addAll(sweep.m_inconsistentEdges);
+			isolatedVertices.addAll(sweep.m_isolatedVertices);
+			numEdges += sweep.m_numEdges;
+			numBoundaryEdges += sweep.m_numBoundaryEdges;
+		}
+		IntList degenerateFaces = new IntList();
+		IntList duplicateFaces = new IntList();
+		for (int f = 0; f < numElements; f++) {
+			if (faces[f] == FACE_INVALID || faces[f] == FACE_NO_AREA) {
+				degenerateFaces.add(f);
+			} else if (faces[f] == FACE_DUPLICATE) {
+				duplicateFaces.add(f);
+			}
+		}
+		return new Report(nonManifoldEdges.toArray(), nonManifoldVertices.toArray(), inconsistentEdges.toArray(),
+				degenerateFaces.toArray(), duplicateFaces.toArray(), isolatedVertices.toArray(), numPolygons, numEdges, numBoundaryEdges);
+	}
+
+	/**
+	 * @return FACE_INVALID for fewer than three distinct existing vertices, FACE_NO_AREA for a face without area
+	 */
+	private static byte checkFace(PiVector element, PdVector[] vertices) {
+		int[] v = element.getEntries();
+		int size = element.getSize();
+		if (size < 3) {
+			return FACE_INVALID;
+		}
+		for (int j = 0; j < size; j++) {
+			if (v[j] < 0 || v[j] >= vertices.length) {
+				return FACE_INVALID;
+			}
+			for (int k = 0; k < j; k++) {
+				if (v[k] == v[j]) {
+					return FACE_INVALID;
+				}
+			}
+		}
+		// Normal of the polygon relative to its first vertex, twice the area of a planar one
+		double[] p0 = vertices[v[0]].m_data;
+		double nx = 0, ny = 0, nz = 0, longest = 0;
+		for (int j = 0; j < size; j++) {
+			double[] a = vertices[v[j]].m_data, b = vertices[v[(j + 1) % size]].m_data;
+			double ax = a[0] - p0[0], ay = a[1] - p0[1], az = a[2] - p0[2];
+			double bx = b[0] - p0[0], by = b[1] - p0[1], bz = b[2] - p0[2];
+			nx += ay * bz - az * by;
+			ny += az * bx - ax * bz;
+			nz += ax * by - ay * bx;
+			double ex = b[0] - a[0], ey = b[1] - a[1], ez = b[2] - a[2];
+			longest = Math.max(longest, ex * ex + ey * ey + ez * ez);
+		}
+		return (nx * nx + ny * ny + nz * nz <= DEGENERATE * longest * longest) ? FACE_NO_AREA : FACE_VALID;
+	}
+
+	/**
+	 * The sweep over the buckets of a range of vertices, with its findings and scratch space.
+	 * Side 2c of corner c is its edge from the previous vertex, side 2c + 1 its edge to the next vertex.
+	 */
+	private static final class Sweep {
+		private final PiVector[] m_elements;
+		private final int[] m_start;
+		private final int[] m_prev;
+		private final int[] m_next;
+		private final int[] m_face;
+		/** Duplicates are marked by the sweep of their smallest vertex, so every face is written by one sweep */
+		private final byte[] m_faces;
+
+		final IntList m_nonManifoldEdges = new IntList();
+		final IntList m_nonManifoldVertices = new IntList();
+		final IntList m_inconsistentEdges = new IntList();
+		final IntList m_isolatedVertices = new IntList();
+		long m_numEdges;
+		long m_numBoundaryEdges;
+
+		/** Per side the other vertex and the side in the upper and lower half, sorted by the other vertex */
+		private long[] m_sides = new long[64];
+		/** Union-find over the corners of the vertex */
+		private int[] m_fans = new int[32];
+		/** Per face of which the vertex is the smallest: the hash of its vertices in the upper and the face in the lower half */
+		private long[] m_hashes = new long[32];
+		private int[] m_sorted = new int[16];
+		private int[] m_other = new int[16];
+
+		Sweep(PiVector[] elements, int[] start, int[] prev, int[] next, int[] face, byte[] faces) {
+			m_elements = elements;
+			m_start = start;
+			m_prev = prev;
+			m_next = next;
+			m_face = face;
+			m_faces = faces;
+		}
+
+		void vertex(int v) {
+			int first = m_start[v];
+			int degree = m_start[v + 1] - first;
+			if (degree == 0) {
+				m_isolatedVertices.add(v);
+				return;
+			}
+			if (2 * degree > m_sides.length) {
+				m_sides = new long[4 * degree];
+				m_fans = new int[2 * degree];
+				m_hashes = new long[2 * degree];
+			}
+			for (int c = 0; c < degree; c++) {
+				m_sides[2 * c] = ((long) m_prev[first + c] << 32) | (2 * c);
+				m_sides[2 * c + 1] = ((long) m_next[first + c] << 32) | (2 * c + 1);
+				m_fans[c] = c;
+			}
+			int numSides = 2 * degree;
+			Arrays.sort(m_sides, 0, numSides);
+
+			for (int i = 0, j; i < numSides; i = j) {
+				int other = (int) (m_sides[i] >>> 32);
+				for (j = i + 1; j < numSides && (int) (m_sides[j] >>> 32) == other; j++) {
+					// The half-edges of the edge to other
+				}
+				int valence = j - i;
+				if (valence == 2) {
+					int a = (int) m_sides[i], b = (int) m_sides[i + 1];
+					union(a >> 1, b >> 1);
+					// Consistent if one half-edge comes into the vertex and the other one leaves it
+					if (v < other && (a & 1) == (b & 1)) {
+						m_inconsistentEdges.add(v);
+						m_inconsistentEdges.add(other);
+					}
+				}
+				// Every edge is counted at its smaller vertex
+				if (v < other) {
+					m_numEdges++;
+					if (valence == 1) {
+						m_numBoundaryEdges++;
+					} else if (valence > 2) {
+						m_nonManifoldEdges.add(v);
+						m_nonManifoldEdges.add(other);
+					}
+				}
+			}
+			int fans = 0;
+			for (int c = 0; c < degree; c++) {
+				if (find(c) == c) {
+					fans++;
+				}
+			}
+			if (fans > 1) {
+				m_nonManifoldVertices.add(v);
+			}
+			findDuplicates(v, first, degree);
+		}
+
+		/**
+		 * Marks the faces of which v is the smallest vertex that have the vertices of an earlier one.
+		 * Faces with equal vertices have equal hashes, and only those are compared.
+		 */
+		private void findDuplicates(int v, int first, int degree) {
+			int count = 0;
+			for (int c = first; c < first + degree; c++) {
+				int f = m_face[c];
+				PiVector element = m_elements[f];
+				if (min(element) == v) {
+					m_sorted = sorted(element, m_sorted);
+					m_hashes[count++] = ((long) hash(m_sorted, element.getSize()) << 32) | f;
+				}
+			}
+			if (count < 2) {
+				return;
+			}
+			Arrays.sort(m_hashes, 0, count);
+			for (int i = 0, j; i < count; i = j) {
+				for (j = i + 1; j < count && (m_hashes[j] >>> 32) == (m_hashes[i] >>> 32); j++) {
+					// Same hash
+				}
+				// Sorted by face within the run, so the earliest of equal faces is kept
+				for (int k = i + 1; k < j; k++) {
+					int f = (int) m_hashes[k];
+					if (m_faces[f] != FACE_VALID) {
+						// Degenerate takes precedence
+						continue;
+					}
+					m_sorted = sorted(m_elements[f], m_sorted);
+					for (int l = i; l < k; l++) {
+						int g = (int) m_hashes[l];
+						m_other = sorted(m_elements[g], m_other);
+						if (m_elements[f].getSize() == m_elements[g].getSize() && sameVertices(m_sorted, m_other, m_elements[f].getSize())) {
+							m_faces[f] = FACE_DUPLICATE;
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		private static int hash(int[] sorted, int size) {
+			int hash = size;
+			for (int i = 0; i < size; i++) {
+				hash = hash * 0x9E3779B1 + sorted[i];
+			}
+			return hash ^ (hash >>> 16);
+		}
+
+		private int find(int c) {
+			while (m_fans[c] != c) {
+				m_fans[c] = m_fans[m_fans[c]];
+				c = m_fans[c];
+			}
+			return c;
+		}
+
+		private void union(int a, int b) {
+			int rootA = find(a);
+			int rootB = find(b);
+			if (rootA != rootB) {
+				m_fans[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+			}
+		}
+	}
+
+	private static int min(PiVector element) {
+		int[] v = element.getEntries();
+		int min = v[0];
+		for (int j = 1; j < element.getSize(); j++) {
+			min = Math.min(min, v[j]);
+		}
+		return min;
+	}
+
+	/**
+	 * @return The vertices of the element in ascending order, in into if it is large enough
+	 */
+	private static int[] sorted(PiVector element, int[] into) {
+		int size = element.getSize();
+		if (into.length < size) {
+			into = new int[2 * size];
+		}
+		System.arraycopy(element.getEntries(), 0, into, 0, size);
+		Arrays.sort(into, 0, size);
+		return into;
+	}
+
+	private static boolean sameVertices(int[] a, int[] b, int size) {
+		for (int i = 0; i < size; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** A growable list of ints */
+	private static final class IntList {
+		private int[] m_values = new int[16];
+		private int m_size;
+
+		void add(int value) {
+			if (m_size == m_values.length) {
+				m_values = Arrays.copyOf(m_values, 2 * m_size);
+			}
+			m_values[m_size++] = value;
+		}
+
+		void addAll(IntList list) {
+			for (int i = 0; i < list.m_size; i++) {
+				add(list.m_values[i]);
+			}
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(m_values, m_size);
+		}
+	}
+
+	/** Result of validate */
+	public static class Report {
+		/** Pairs of vertices, the smaller one first */
+		public final int[] m_nonManifoldEdges;
+		public final int[] m_nonManifoldVertices;
+		/** Pairs of vertices of the edges whose two faces have opposite orientation, the smaller one first */
+		public final int[] m_inconsistentEdges;
+		public final int[] m_degenerateFaces;
+		/** Faces on the same vertices as a face with a smaller index */
+		public final int[] m_duplicateFaces;
+		public final int[] m_isolatedVertices;
+		/** Faces with more than three vertices */
+		public final int m_numPolygons;
+		public final long m_numEdges;
+		public final long m_numBoundaryEdges;
+
+		Report(int[] nonManifoldEdges, int[] nonManifoldVertices, int[] inconsistentEdges, int[] degenerateFaces,
+				int[] duplicateFaces, int[] isolatedVertices, int numPolygons, long numEdges, long numBoundaryEdges) {
+			m_nonManifoldEdges = nonManifoldEdges;
+			m_nonManifoldVertices = nonManifoldVertices;
+			m_inconsistentEdges = inconsistentEdges;
+			m_degenerateFaces = degenerateFaces;
+			m_duplicateFaces = duplicateFaces;
+			m_isolatedVertices = isolatedVertices;
+			m_numPolygons = numPolygons;
+			m_numEdges = numEdges;
+			m_numBoundaryEdges = numBoundaryEdges;
+		}
+
+		public boolean isManifold() {
+			return m_nonManifoldEdges.length == 0 && m_nonManifoldVertices.length == 0;
+		}
+
+		/**
+		 * @return Whether the mesh is manifold and consistently oriented, without degenerate or duplicate faces
+		 *         and without isolated vertices. A boundary is allowed.
+		 */
+		public boolean isValid() {
+			return isManifold() && m_inconsistentEdges.length == 0 && m_degenerateFaces.length == 0
+					&& m_duplicateFaces.length == 0 && m_isolatedVertices.length == 0;
+		}
+
+		public boolean isTriangleMesh() {
+			return m_numPolygons == 0;
+		}
+
+		@Override
+		public String toString() {
+			if (isValid()) {
+				return String.format("valid, %d edges, %d on the boundary%s", m_numEdges, m_numBoundaryEdges,
+						isTriangleMesh() ? "" : ", " + m_numPolygons + " polygons");
+			}
+			return String.format("%d non-manifold edges, %d non-manifold vertices, %d inconsistently oriented edges, "
+					+ "%d degenerate faces, %d duplicate faces, %d isolated vertices",
+					m_nonManifoldEdges.length / 2, m_nonManifoldVertices.length, m_inconsistentEdges.length / 2,
+					m_degenerateFaces.length, m_duplicateFaces.length, m_isolatedVertices.length);
+		}
+	}
+}
@@ -11,9 +11,14 @@ import jvx.numeric.PnBiconjugateGradient;
 import jvx.numeric.PnSparseMatrix;
 import jvx.project.PjWorkshop;
 
+import java.util.concurrent.ForkJoinPool;
+
 public class ShapeDeformation extends PjWorkshop {
     PgElementSet m_geom;
     PgElementSet m_geomSave;
+    /** Element checksum of the mesh validateMesh last accepted, see MeshValidator.checksum */
+    private long m_validElements;
+    private boolean m_validated;
 
     public ShapeDeformation() {
         super("Shape deformation algorithm");
@@ -35,6 +40,27 @@ public class ShapeDeformation extends PjWorkshop {
         super.setGeometry(geom);
         m_geom 		= (PgElementSet)super.m_geom;
         m_geomSave 	= (PgElementSet)super.m_geomSave;
+        m_validated = false;
+    }
+
+    /**
+     * Checks the mesh before a solver runs on it, see MeshValidator.
+     * Once a mesh is accepted it is only checked again after its elements change, so the steps of a run that
+     * only move vertices are not validated one by one and are not stopped by a face the smoothing flattens.
+     * @return True for a valid triangle mesh, otherwise the problems are reported and nothing should be solved
+     */
+    protected boolean validateMesh() {
+        long checksum = MeshValidator.checksum(m_geom.getElements());
+        if (m_validated && checksum == m_validElements)
+            return true;
+        MeshValidator.Report report = MeshValidator.validate(m_geom, ForkJoinPool.commonPool());
+        if (report.isValid() && report.isTriangleMesh()) {
+            m_validated = true;
+            m_validElements = checksum;
+            return true;
+        }
+        PsDebug.warning("Not solving on an invalid mesh: " + report);
+        return false;
     }
 
     protected double calcArea(PiVector triangle) {
@@ -72,6 +98,8 @@ public class ShapeDeformation extends PjWorkshop {
 
 
     public void deformSelected(PdMatrix deformMatrix) {
+        if (!validateMesh())
+            return;
         PnSparseMatrix matrixG = meshToGradient();
         PnSparseMatrix MatrixGTranspose = PnSparseMatrix.transposeNew(matrixG);
         PnSparseMatrix matrixM = getMv();
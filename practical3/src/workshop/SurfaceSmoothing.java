@@ -19,6 +19,9 @@ public class SurfaceSmoothing extends ShapeDeformation {
 	}
 
 	public void iterative(double stepsize) {
+		if (!validateMesh()) {
+			return;
+		}
 		int numVertices = m_geom.getNumVertices();
 		PiVector[] triangles = m_geom.getElements();
 		ArrayList<Integer>[] vertex_neighbours = new ArrayList[numVertices];
@@ -79,6 +82,9 @@ public class SurfaceSmoothing extends ShapeDeformation {
 	}
 
 	public void explicit(double tau) {
+		if (!validateMesh()) {
+			return;
+		}
 		PsDebug.message("calculating explicit MCF");
 		PnSparseMatrix matrixLaplacian = getLaplacian();
 
@@ -122,6 +128,9 @@ public class SurfaceSmoothing extends ShapeDeformation {
 	}
 
 	public void implicit(double tau) {
+		if (!validateMesh()) {
+			return;
+		}
 		PsDebug.message("calculating implicit MCF");
 		PsDebug.message("Calculating S matrix");
 		PnSparseMatrix matrixG = meshToGradient();
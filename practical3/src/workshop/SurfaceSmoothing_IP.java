@@ -114,6 +114,9 @@ public class SurfaceSmoothing_IP  extends PjWorkshop_IP implements ActionListene
 				double stepsize = Double.parseDouble(fieldStepsize.getText());
 				int numSteps = Integer.parseInt(fieldNumSteps.getText());
 	//			PsDebug.message("Stepsize: " + stepsize);
+				// Once per run, the steps then find the mesh accepted
+				if (!surfaceSmoothing.validateMesh())
+					return;
 				for (int i = 0; i < numSteps; i++){
 					if(source == btnIterative){
 						surfaceSmoothing.iterative(stepsize);